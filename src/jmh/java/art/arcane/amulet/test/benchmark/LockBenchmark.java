@@ -0,0 +1,68 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.test.benchmark;
+
+import art.arcane.amulet.atomics.GridLock;
+import art.arcane.amulet.atomics.HyperLock;
+import art.arcane.amulet.atomics.LockType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lock types of HyperLock and GridLock on short critical sections. The amount of keys sets the contention,
+ * one key means every thread fights over the same lock. Run with ./gradlew jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class LockBenchmark {
+    @Param({"REENTRANT", "SPIN_PARK"})
+    public LockType type;
+
+    @Param({"1", "4", "64"})
+    public int keys;
+
+    @Param({"50", "500"})
+    public int work;
+
+    private HyperLock hyperLock;
+    private GridLock gridLock;
+
+    @Setup
+    public void setup() {
+        hyperLock = HyperLock.striped(1024, type);
+        gridLock = new GridLock(keys, 1, type);
+    }
+
+    @Benchmark
+    public void hyperLock() {
+        int k = ThreadLocalRandom.current().nextInt(keys);
+        hyperLock.with(k, 0, () -> Blackhole.consumeCPU(work));
+    }
+
+    @Benchmark
+    public void gridLock() {
+        int k = ThreadLocalRandom.current().nextInt(keys);
+        gridLock.with(k, 0, () -> Blackhole.consumeCPU(work));
+    }
+}
@@ -18,6 +18,8 @@
 
 package Amulet.extensions.java.util.List;
 
+import art.arcane.amulet.collections.PersistentVector;
+import art.arcane.amulet.concurrent.J;
 import art.arcane.amulet.functional.Consume;
 import manifold.ext.rt.api.Extension;
 import manifold.ext.rt.api.Self;
@@ -25,15 +27,23 @@ import manifold.ext.rt.api.This;
 
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static art.arcane.amulet.MagicalSugar.index;
 import static art.arcane.amulet.MagicalSugar.reverse;
 
 @Extension
 public class XList {
+    /**
+     * Below this size the parallel operations run on the calling thread, splitting would cost more than it saves
+     */
+    private static final int PARALLEL_THRESHOLD = 10_000;
+
     /**
      * Returns a copy of this list without duplicates (set conversion)
      */
@@ -296,25 +306,94 @@ public class XList {
     }
 
     public static <E> @Self List<E> removeWhere(@This List<E> self, Predicate<E> predicate) {
-        if (self.isEmpty()) {
-            return self;
+        // Immutable collections such as List.of() throw on removeIf even when there is nothing to remove
+        if (!self.isEmpty()) {
+            self.removeIf(predicate);
         }
 
-        List<E> drop = new ArrayList<>();
+        return self;
+    }
+
+    public static <E> @Self List<E> keepWhere(@This List<E> self, Predicate<E> predicate) {
+        return self.removeWhere(predicate.negate());
+    }
 
-        for (int i : reverse index self) {
-            if (predicate.test(self[i])) {
-                drop.add(self[i]);
-            }
+    /**
+     * Like where, but lists above {@link #PARALLEL_THRESHOLD} elements are filtered on the {@link J#forkJoin()} pool.
+     * The order is kept.
+     */
+    public static <E> @Self List<E> parallelWhere(@This List<E> self, Predicate<E> pred) {
+        if (self.size() < PARALLEL_THRESHOLD) {
+            return self.where(pred);
+        }
+
+        return J.forkJoin().submit(() -> self.parallelStream()
+                .filter(pred)
+                .collect(Collectors.toCollection(ArrayList::new))).join();
+    }
+
+    /**
+     * Like convert, but lists above {@link #PARALLEL_THRESHOLD} elements are converted on the {@link J#forkJoin()}
+     * pool. The order is kept and null results are skipped.
+     */
+    public static <E, R> @Self List<R> parallelConvert(@This List<E> self, Function<E, R> converter) {
+        if (self.size() < PARALLEL_THRESHOLD) {
+            return self.convert(converter);
+        }
+
+        return J.forkJoin().submit(() -> self.parallelStream()
+                .map(converter)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toCollection(ArrayList::new))).join();
+    }
+
+    /**
+     * Like removeWhere, but the predicate is tested on the {@link J#forkJoin()} pool for array lists above
+     * {@link #PARALLEL_THRESHOLD} elements. The kept elements are then moved down in a single pass. Other lists, such
+     * as copy on write or concurrent lists where every set copies or could race, just use removeIf.
+     */
+    public static <E> @Self List<E> parallelRemoveWhere(@This List<E> self, Predicate<E> predicate) {
+        int size = self.size();
+
+        if (size < PARALLEL_THRESHOLD || !(self instanceof ArrayList)) {
+            return self.removeWhere(predicate);
         }
 
-        self.removeAll(drop);
+        boolean[] drop = new boolean[size];
+        J.forkJoin().submit(() -> IntStream.range(0, size).parallel()
+                .forEach((i) -> drop[i] = predicate.test(self.get(i)))).join();
+        int kept = 0;
+
+        for (int i = 0; i < size; i++) {
+            if (!drop[i]) {
+                if (kept != i) {
+                    self.set(kept, self.get(i));
+                }
 
+                kept++;
+            }
+        }
+
+        self.subList(kept, size).clear();
         return self;
     }
 
-    public static <E> @Self List<E> keepWhere(@This List<E> self, Predicate<E> predicate) {
-        return self.removeWhere(predicate.negate());
+    public static <E> @Self List<E> parallelKeepWhere(@This List<E> self, Predicate<E> predicate) {
+        return self.parallelRemoveWhere(predicate.negate());
+    }
+
+    /**
+     * Run the action for every element, on the {@link J#forkJoin()} pool for lists above {@link #PARALLEL_THRESHOLD}
+     * elements. Elements are not visited in order then. Returns once every element has been visited.
+     */
+    public static <E> @Self List<E> parallelEach(@This List<E> self, Consumer<E> action) {
+        if (self.size() < PARALLEL_THRESHOLD) {
+            self.forEach(action);
+        } else {
+            J.forkJoin().submit(() -> self.parallelStream().forEach(action)).join();
+        }
+
+        return self;
     }
 
     public static <E, R> @Self List<R> convert(@This List<E> self, Function<E, R> converter) {
@@ -359,6 +438,14 @@ public class XList {
         return new CopyOnWriteArrayList<>();
     }
 
+    /**
+     * @return an empty immutable list, plus, with and minus share structure instead of copying it
+     */
+    @Extension
+    public static <E> PersistentVector<E> persistent() {
+        return PersistentVector.empty();
+    }
+
     @Extension
     public static <E> ArrayList<E> array() {
         return new ArrayList<>();
@@ -404,12 +491,20 @@ public class XList {
     }
 
     public static <E> @Self List<E> minus(@This List<E> self, E that) {
+        if (self instanceof PersistentVector<E> p) {
+            return p.minus(that);
+        }
+
         List<E> s = List.from(self);
         s.remove(that);
         return s;
     }
 
     public static <E> @Self List<E> minus(@This List<E> self, Collection<E> that) {
+        if (self instanceof PersistentVector<E> p) {
+            return p.minus(that);
+        }
+
         List<E> s = List.from(self);
         s.removeAll(that);
         return s;
@@ -421,10 +516,18 @@ public class XList {
     }
 
     public static <E> @Self List<E> unaryMinus(@This List<E> self) {
+        if (self instanceof PersistentVector<E> p) {
+            return p.reversed();
+        }
+
         return List.from(self).reverse();
     }
 
     public static <E> @Self List<E> minus(@This List<E> self, List<E> that) {
+        if (self instanceof PersistentVector<E> p) {
+            return p.minus(that);
+        }
+
         return List.from(self).remove(that);
     }
 
@@ -18,6 +18,10 @@
 
 package Amulet.extensions.java.util.Map;
 
+import art.arcane.amulet.collections.BiMap;
+import art.arcane.amulet.collections.PersistentMap;
+import art.arcane.amulet.collections.TopK;
+import art.arcane.amulet.concurrent.J;
 import art.arcane.amulet.functional.Consume;
 import manifold.ext.rt.api.Extension;
 import manifold.ext.rt.api.Self;
@@ -25,11 +29,17 @@ import manifold.ext.rt.api.This;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 @Extension
 public class XMap {
+    /**
+     * Below this size the parallel operations run on the calling thread, splitting would cost more than it saves
+     */
+    private static final int PARALLEL_THRESHOLD = 10_000;
+
     /**
      * Returns a sorted list of keys from this map, based on the sorting order of
      * the values.
@@ -38,46 +48,84 @@ public class XMap {
      * @return the value-sorted key list
      */
     public static <K, V> List<K> sortK(@This Map<K, V> self, Comparator<V> comparator) {
-        List<K> k = new ArrayList<K>();
-        List<V> v = self.v();
-        List<K> sk = self.k();
+        List<Map.Entry<K, V>> e = self.sortByValue(comparator);
+        List<K> k = new ArrayList<>(e.size());
 
-        v.sort(comparator);
-
-        for (V i : v) {
-            for (K j : sk) {
-                if (self.get(j).equals(i)) {
-                    k.add(j);
-                }
-            }
+        for (Map.Entry<K, V> i : e) {
+            k.add(i.getKey());
         }
 
         return k;
     }
 
-    public static <K, V> List<K> sortKNumber(@This Map<K, V> self)
-    {
-        List<K> k = new ArrayList<>();
-        List<V> v = self.v();
-
-        Collections.sort(v, (v1, t1) -> {
-            Number n1 = (Number) v1;
-            Number n2 = (Number) t1;
-            return (int) ((n1.doubleValue() - n2.doubleValue()) * 1_000);
-        });
-
-        for(V i : v)
-        {
-            for(K j : self.k())
-            {
-                if(self.get(j).equals(i))
-                {
-                    k.add(j);
-                }
-            }
+    /**
+     * Returns a list of keys from this map, sorted by their numeric values ascending
+     *
+     * @return the value-sorted key list
+     */
+    public static <K, V> List<K> sortKNumber(@This Map<K, V> self) {
+        return self.sortK(Comparator.comparingDouble((v) -> ((Number) v).doubleValue()));
+    }
+
+    /**
+     * Returns a snapshot of the entries of this map sorted by their values in O(n log n). Entries with equal values
+     * keep the iteration order of the map.
+     *
+     * @param comparator the value comparator
+     * @return the value-sorted entries
+     */
+    public static <K, V> List<Map.Entry<K, V>> sortByValue(@This Map<K, V> self, Comparator<V> comparator) {
+        List<Map.Entry<K, V>> e = entries(self);
+        e.sort(Map.Entry.comparingByValue(comparator));
+        return e;
+    }
+
+    /**
+     * Returns a snapshot of the entries of this map sorted by their keys in O(n log n)
+     *
+     * @param comparator the key comparator
+     * @return the key-sorted entries
+     */
+    public static <K, V> List<Map.Entry<K, V>> sortByKey(@This Map<K, V> self, Comparator<K> comparator) {
+        List<Map.Entry<K, V>> e = entries(self);
+        e.sort(Map.Entry.comparingByKey(comparator));
+        return e;
+    }
+
+    /**
+     * Get the n entries with the greatest values without sorting the whole map, O(size log n)
+     *
+     * @param n          the amount of entries
+     * @param comparator the value comparator
+     * @return at most n entries, greatest value first
+     */
+    public static <K, V> List<Map.Entry<K, V>> topK(@This Map<K, V> self, int n, Comparator<V> comparator) {
+        TopK<Map.Entry<K, V>> top = new TopK<>(n, Map.Entry.comparingByValue(comparator));
+
+        for (Map.Entry<K, V> i : self.entrySet()) {
+            top.offer(new AbstractMap.SimpleImmutableEntry<>(i));
+        }
+
+        return top.toList();
+    }
+
+    /**
+     * Like {@link #topK(Map, int, Comparator)} but large maps are split across the {@link J#forkJoin()} pool, each
+     * part keeping its own top n which are merged at the end. Safe to call on concurrent maps while they are modified,
+     * the result then reflects some state of the map during the call.
+     *
+     * @param n          the amount of entries
+     * @param comparator the value comparator
+     * @return at most n entries, greatest value first
+     */
+    public static <K, V> List<Map.Entry<K, V>> parallelTopK(@This Map<K, V> self, int n, Comparator<V> comparator) {
+        if (self.size() < PARALLEL_THRESHOLD) {
+            return self.topK(n, comparator);
         }
 
-        return k.withoutDuplicates();
+        return J.forkJoin().submit(() -> self.entrySet().parallelStream()
+                .<Map.Entry<K, V>>map(AbstractMap.SimpleImmutableEntry::new)
+                .collect(TopK.collector(n, Map.Entry.comparingByValue(comparator)))).join();
     }
 
     public static <K, V> @Self Map<K, V> unmodifiable(@This Map<K, V> self) {
@@ -95,6 +143,10 @@ public class XMap {
     }
 
     public static <K, V> @Self Map<K, V> plus(@This Map<K, V> self, Map<K, V> map) {
+        if (self instanceof PersistentMap<K, V> p) {
+            return p.plus(map);
+        }
+
         return self.copy().put(map);
     }
 
@@ -152,24 +204,65 @@ public class XMap {
         return new IdentityHashMap<>();
     }
 
+    /**
+     * @return an empty immutable map, plus and minus share structure instead of copying it
+     */
+    @Extension
+    public static <K, V> PersistentMap<K, V> persistent() {
+        return PersistentMap.empty();
+    }
+
+    /**
+     * @return a new map with unique values and a constant time inverse view
+     */
+    @Extension
+    public static <K, V> BiMap<K, V> bi() {
+        return new BiMap<>();
+    }
+
     public static <K, V> @Self Map<K, V> keepWhere(@This Map<K, V> self, Predicate<K> predicate) {
         self.keySet().keepWhere(predicate);
         return self;
     }
 
     public static <K, V> @Self Map<K, V> minus(@This Map<K, V> self, Map<K, V> map) {
+        if (self instanceof PersistentMap<K, V> p) {
+            return p.minus(map.keySet());
+        }
+
         return self.copy().removeWhere(map::containsKey);
     }
 
     public static <K, V> @Self Map<K, V> minus(@This Map<K, V> self, Collection<K> collection) {
+        if (self instanceof PersistentMap<K, V> p) {
+            return p.minus(collection);
+        }
+
         return self.copy().removeWhere(collection::contains);
     }
 
     public static <K, V> @Self Map<K, V> minus(@This Map<K, V> self, K v) {
+        if (self instanceof PersistentMap<K, V> p) {
+            return p.minus(v);
+        }
+
         return self.copy().qremove(v);
     }
 
+    /**
+     * Flip this map, a {@link BiMap} returns its inverse view instead of a copy
+     *
+     * @return the flipped map
+     */
     public static <K, V> @Self Map<V, K> unaryMinus(@This Map<K, V> self) {
+        if (self instanceof BiMap<K, V> b) {
+            return b.inverse();
+        }
+
+        if (self instanceof PersistentMap<K, V>) {
+            return PersistentMap.of(self.flipFlatten());
+        }
+
         return self.copy().flipFlatten();
     }
 
@@ -233,17 +326,68 @@ public class XMap {
         return self;
     }
 
+    /**
+     * Like each, but maps above {@link #PARALLEL_THRESHOLD} entries are visited on the {@link J#forkJoin()} pool.
+     * The entries are not copied, so the function may only modify the map if it is concurrent. Returns once every
+     * entry has been visited.
+     *
+     * @param f the function
+     * @return the same map
+     */
+    public static <K, V> @Self Map<K, V> parallelEach(@This Map<K, V> self, Consume.Two<K, V> f) {
+        if (self.size() < PARALLEL_THRESHOLD) {
+            return self.each(f);
+        }
+
+        J.forkJoin().submit(() -> self.entrySet().parallelStream().forEach((e) -> f.accept(e.getKey(), e.getValue()))).join();
+        return self;
+    }
+
+    /**
+     * Like rewrite, but concurrent maps above {@link #PARALLEL_THRESHOLD} entries are visited on the
+     * {@link J#forkJoin()} pool. The keys are copied first, just like rewrite, so the function may modify the map.
+     * Other maps are not safe to modify from many threads and are rewritten on the calling thread instead.
+     * Returns once every key has been visited.
+     *
+     * @param f the function
+     * @return the same map
+     */
+    public static <K, V> @Self Map<K, V> parallelRewrite(@This Map<K, V> self, Consume.Three<K, V, Map<K, V>> f) {
+        if (self.size() < PARALLEL_THRESHOLD || !(self instanceof ConcurrentMap)) {
+            return self.rewrite(f);
+        }
+
+        List<K> keys = new ArrayList<>(self.keySet());
+        J.forkJoin().submit(() -> keys.parallelStream().forEach((k) -> f.accept(k, self.get(k), self))).join();
+        return self;
+    }
+
+    /**
+     * Like removeWhere, but maps above {@link #PARALLEL_THRESHOLD} entries test the keys on the {@link J#forkJoin()}
+     * pool
+     */
+    public static <K, V> @Self Map<K, V> parallelRemoveWhere(@This Map<K, V> self, Predicate<K> predicate) {
+        self.keySet().parallelRemoveWhere(predicate);
+        return self;
+    }
+
     /**
      * Flip the hashmap and flatten the value list even if there are multiple keys
      *
+     * If this map is a {@link BiMap} its inverse view is returned in constant time instead.
+     *
      * @return the flipped and flattened hashmap
      */
     public static <K, V> Map<V, K> flipFlatten(@This Map<K, V> self) {
+        if (self instanceof BiMap<K, V> b) {
+            return b.inverse();
+        }
+
         Map<V, List<K>> f = self.flip();
         Map<V, K> m = new HashMap<>();
 
         for (V i : f.k()) {
-            m.putNonNull(i, m.isEmpty() ? null : (f.get(i))[0]);
+            m.putNonNull(i, f.get(i).isEmpty() ? null : (f.get(i))[0]);
         }
 
         return m;
@@ -275,17 +419,11 @@ public class XMap {
      * @return the values (sorted)
      */
     public static <K, V> List<V> sortV(@This Map<K, V> self, Comparator<K> comparator) {
-        List<V> v = new ArrayList<>();
-        List<K> k = self.k();
-        List<V> vs = self.v();
-        k.sort(comparator);
-
-        for (K i : k) {
-            for (V j : vs) {
-                if (self.get(i).equals(j)) {
-                    v.add(j);
-                }
-            }
+        List<Map.Entry<K, V>> e = self.sortByKey(comparator);
+        List<V> v = new ArrayList<>(e.size());
+
+        for (Map.Entry<K, V> i : e) {
+            v.add(i.getValue());
         }
 
         return v;
@@ -360,4 +498,17 @@ public class XMap {
         self.clear();
         return self;
     }
+
+    /**
+     * Copy the entries so sorting sees stable values even if the map is modified meanwhile
+     */
+    private static <K, V> List<Map.Entry<K, V>> entries(Map<K, V> self) {
+        List<Map.Entry<K, V>> e = new ArrayList<>(self.size());
+
+        for (Map.Entry<K, V> i : self.entrySet()) {
+            e.add(new AbstractMap.SimpleImmutableEntry<>(i));
+        }
+
+        return e;
+    }
 }
@@ -18,6 +18,8 @@
 
 package Amulet.extensions.java.util.Set;
 
+import art.arcane.amulet.collections.PersistentSet;
+import art.arcane.amulet.concurrent.J;
 import manifold.ext.rt.api.Extension;
 import manifold.ext.rt.api.Self;
 import manifold.ext.rt.api.This;
@@ -25,12 +27,19 @@ import manifold.util.concurrent.ConcurrentHashSet;
 
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Extension
 public class XSet {
+    /**
+     * Below this size the parallel operations run on the calling thread, splitting would cost more than it saves
+     */
+    private static final int PARALLEL_THRESHOLD = 10_000;
+
     public static <E> @Self Set<E> copy(@This Set<E> self) {
         return self.copy(HashSet::new);
     }
@@ -78,13 +87,11 @@ public class XSet {
     }
 
     public static <E> @Self Set<E> removeWhere(@This Set<E> self, Predicate<E> predicate) {
-        if (self.isEmpty()) {
-            return self;
+        // Immutable collections such as Set.of() throw on removeIf even when there is nothing to remove
+        if (!self.isEmpty()) {
+            self.removeIf(predicate);
         }
 
-        var s = self.stream().filter(predicate.negate()).toSet();
-        self.clear();
-        self.addAll(s);
         return self;
     }
 
@@ -92,6 +99,59 @@ public class XSet {
         return self.removeWhere(predicate.negate());
     }
 
+    /**
+     * Like removeWhere, but sets above {@link #PARALLEL_THRESHOLD} elements test the predicate on the
+     * {@link J#forkJoin()} pool, then remove the matches one by one
+     */
+    public static <E> @Self Set<E> parallelRemoveWhere(@This Set<E> self, Predicate<E> predicate) {
+        if (self.size() < PARALLEL_THRESHOLD) {
+            return self.removeWhere(predicate);
+        }
+
+        List<E> drop = J.forkJoin().submit(() -> self.parallelStream()
+                .filter(predicate)
+                .collect(Collectors.toList())).join();
+
+        for (E i : drop) {
+            self.remove(i);
+        }
+
+        return self;
+    }
+
+    public static <E> @Self Set<E> parallelKeepWhere(@This Set<E> self, Predicate<E> predicate) {
+        return self.parallelRemoveWhere(predicate.negate());
+    }
+
+    /**
+     * Like convert, but sets above {@link #PARALLEL_THRESHOLD} elements are converted on the {@link J#forkJoin()} pool.
+     * Null results are skipped.
+     */
+    public static <E, R> @Self Set<R> parallelConvert(@This Set<E> self, Function<E, R> converter) {
+        if (self.size() < PARALLEL_THRESHOLD) {
+            return self.convert(converter);
+        }
+
+        return J.forkJoin().submit(() -> self.parallelStream()
+                .map(converter)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toCollection(HashSet::new))).join();
+    }
+
+    /**
+     * Run the action for every element, on the {@link J#forkJoin()} pool for sets above {@link #PARALLEL_THRESHOLD}
+     * elements. Returns once every element has been visited.
+     */
+    public static <E> @Self Set<E> parallelEach(@This Set<E> self, Consumer<E> action) {
+        if (self.size() < PARALLEL_THRESHOLD) {
+            self.forEach(action);
+        } else {
+            J.forkJoin().submit(() -> self.parallelStream().forEach(action)).join();
+        }
+
+        return self;
+    }
+
     public static <E, R> @Self Set<R> convert(@This Set<E> self, Function<E, R> converter) {
         Set<R> f = new HashSet<>();
 
@@ -133,6 +193,14 @@ public class XSet {
         return new ConcurrentHashSet<>();
     }
 
+    /**
+     * @return an empty immutable set, plus and minus share structure instead of copying it
+     */
+    @Extension
+    public static <E> PersistentSet<E> persistent() {
+        return PersistentSet.empty();
+    }
+
     @Extension
     public static <E> HashSet<E> hash() {
         return new HashSet<>();
@@ -185,12 +253,20 @@ public class XSet {
     }
 
     public static <E> @Self Set<E> minus(@This Set<E> self, E that) {
+        if (self instanceof PersistentSet<E> p) {
+            return p.minus(that);
+        }
+
         Set<E> s = Set.from(self);
         s.remove(that);
         return s;
     }
 
     public static <E> @Self Set<E> minus(@This Set<E> self, Collection<E> that) {
+        if (self instanceof PersistentSet<E> p) {
+            return p.minus(that);
+        }
+
         Set<E> s = Set.from(self);
         s.removeAll(that);
         return s;
@@ -26,8 +26,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicReference;
 
 @Extension
 public class XFuture {
@@ -47,9 +47,8 @@ public class XFuture {
      * @return a future list of all the results including this future
      */
     @SafeVarargs
-    @SuppressWarnings("Convert2MethodRef")
     public static <V> Future<List<V>> and(@This Future<V> self, Future<V>... vs) {
-        return J.get(() -> Arrays.stream(vs).and(self).map((i) -> i.force()).toList());
+        return all(Arrays.stream(vs).and(self).map(XFuture::forced).toList());
     }
 
     /**
@@ -74,9 +73,8 @@ public class XFuture {
      * @return the future list of all the results including this future's result
      */
     @SafeVarargs
-    @SuppressWarnings("Convert2MethodRef")
     public static <V> Future<List<V>> andCall(@This Future<V> self, Callable<V>... vs) {
-        return J.get(() -> Arrays.stream(vs).map(J::get).and(self).map((i) -> i.force()).toList());
+        return all(Arrays.stream(vs).map(J::get).map(XFuture::forced).and(forced(self)).toList());
     }
 
     /**
@@ -87,13 +85,9 @@ public class XFuture {
      * @param <V>
      * @return this future's result (after all the runnables have finished with this future concurrently)
      */
-    @SuppressWarnings("Convert2MethodRef")
     public static <V> Future<V> andRunAll(@This Future<V> self, Runnable... vs) {
-        return J.get(() -> {
-            AtomicReference<V> bin = new AtomicReference<>();
-            J.run(() -> Arrays.stream(vs).and(() -> bin.set(self.force())).map((i) -> J.run(i)).forEach((i) -> i.force())).force();
-            return bin.get();
-        });
+        CompletableFuture<V> result = forced(self);
+        return J.runAll(vs).handle((v, e) -> null).thenCombine(result, (v, r) -> r);
     }
 
     /**
@@ -106,7 +100,7 @@ public class XFuture {
      * @return the future of the THEN being called.
      */
     public static <V, R> Future<R> then(@This Future<V> self, FutureThenFunction<V, R> then) {
-        return J.get(() -> then.apply(self.force()));
+        return forced(self).thenApplyAsync(then::apply, J.backend());
     }
 
     /**
@@ -119,7 +113,38 @@ public class XFuture {
      * @return the future of the THEN being called.
      */
     public static <V, R> Future<R> then(@This Future<V> self, Future<R> then) {
-        return self.then((r) -> J.get(then::get).force());
+        return forced(self).thenCompose((r) -> forced(then));
+    }
+
+    /**
+     * Get this future as a completable future so it can be composed without blocking. Futures created by J
+     * already are completable, any other future which is not done yet costs one pool thread waiting on it.
+     *
+     * @return the completable future
+     */
+    public static <V> CompletableFuture<V> completable(@This Future<V> self) {
+        if (self instanceof CompletableFuture<V> f) {
+            return f;
+        }
+
+        if (self.isDone()) {
+            try {
+                return CompletableFuture.completedFuture(self.get());
+            } catch (Throwable e) {
+                return CompletableFuture.failedFuture(e instanceof ExecutionException ee && ee.getCause() != null ? ee.getCause() : e);
+            }
+        }
+
+        return J.get(self::get);
+    }
+
+    private static <V> CompletableFuture<V> forced(Future<V> future) {
+        return future.completable().handle((v, e) -> e == null ? v : null);
+    }
+
+    private static <V> CompletableFuture<List<V>> all(List<CompletableFuture<V>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply((v) -> futures.stream().map(CompletableFuture::join).toList());
     }
 
     @FunctionalInterface
@@ -18,6 +18,7 @@
 
 package Amulet.extensions.java.util.concurrent.Semaphore;
 
+import art.arcane.amulet.atomics.ResizableSemaphore;
 import manifold.ext.rt.api.Extension;
 import manifold.ext.rt.api.This;
 
@@ -28,63 +29,67 @@ import java.util.function.Supplier;
 public class XSemaphore {
     public static void run(@This Semaphore self, int permits, Runnable r) throws InterruptedException {
         self.acquire(permits);
-        r.run();
-        self.release(permits);
+        try {
+            r.run();
+        } finally {
+            self.release(permits);
+        }
     }
 
     public static <T> T run(@This Semaphore self, int permits, Supplier<T> r) throws InterruptedException {
         self.acquire(permits);
-        T tt = r.get();
-        self.release(permits);
-        return tt;
+        try {
+            return r.get();
+        } finally {
+            self.release(permits);
+        }
     }
 
+    /**
+     * Get the permit count of this semaphore. Only a {@link ResizableSemaphore} knows its total,
+     * for any other semaphore this is the amount of permits available right now.
+     *
+     * @return the permit count
+     */
     public static int getPermitCount(@This Semaphore self) {
-        String s = self.toString().split("\\Q=\\E")[1].trim();
-        s = s.substring(0, s.length() - 1);
-        return Integer.parseInt(s);
+        return self instanceof ResizableSemaphore r ? r.getPermits() : self.availablePermits();
     }
 
+    /**
+     * Run while holding every permit. A {@link ResizableSemaphore} waits until all of its permits are free,
+     * any other semaphore can only take the permits available right now.
+     *
+     * @param r the runnable
+     */
     public static void withAll(@This Semaphore self, Runnable r) {
-        int drained = self.drainPermits();
-        int p = self.getPermitCount();
-        while (drained < p) {
-            int a = self.availablePermits();
-            if (a > 0) {
-                if (self.tryAcquire(a)) {
-                    drained += a;
-                }
-            } else if (self.tryAcquire()) {
-                drained++;
-            } else {
-                try {
-                    self.acquire();
-                    drained++;
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-            }
+        if (self instanceof ResizableSemaphore rs) {
+            rs.withAll(r);
+            return;
         }
 
+        int drained = self.drainPermits();
         try {
             r.run();
-        } catch (Throwable e) {
-            throw new RuntimeException(e);
+        } finally {
+            self.release(drained);
         }
-
-        self.release(drained);
     }
 
     public static void run(@This Semaphore self, Runnable r) throws InterruptedException {
         self.acquire();
-        r.run();
-        self.release();
+        try {
+            r.run();
+        } finally {
+            self.release();
+        }
     }
 
     public static <T> T run(@This Semaphore self, Supplier<T> r) throws InterruptedException {
         self.acquire();
-        T tt = r.get();
-        self.release();
-        return tt;
+        try {
+            return r.get();
+        } finally {
+            self.release();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.atomics;
+
+import art.arcane.amulet.concurrent.J;
+import art.arcane.amulet.data.CompressedNumbers;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Hands out permits by x z coordinates without blocking any thread, for callers on async paths. Only one permit of a
+ * coordinate is held at a time, the others wait in the order they were requested and cost no threads.
+ * <p>
+ * This is a lock of its own, separate from {@link HyperLock}. A permit does not exclude the blocking locks of a
+ * HyperLock and is not excluded by them, so code guarding the same data must use only one of the two.
+ */
+public class AsyncHyperLock {
+    private final Map<Long, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    /**
+     * Acquire the permit of a coordinate. It is granted once the previous permit of the coordinate has been released.
+     * Cancelling the returned future (or completing it in any other way, such as with orTimeout) before the permit
+     * is granted gives up the permit, it is then passed on to the next waiter.
+     *
+     * @param x the x coordinate
+     * @param z the z coordinate
+     * @return the future completing with the permit, which must be released
+     */
+    public CompletableFuture<Permit> acquire(int x, int z) {
+        long key = CompressedNumbers.i2(x, z);
+        CompletableFuture<Void> released = new CompletableFuture<>();
+        Permit permit = new Permit(key, released);
+        CompletableFuture<Void> previous = tails.put(key, released);
+
+        if (previous == null || previous.isDone()) {
+            return CompletableFuture.completedFuture(permit);
+        }
+
+        CompletableFuture<Permit> granted = new CompletableFuture<>();
+        previous.whenCompleteAsync((v, e) -> {
+            if (!granted.complete(permit)) {
+                permit.release();
+            }
+        }, J.backend());
+
+        return granted;
+    }
+
+    /**
+     * Run an async operation while holding the permit of a coordinate. The permit is released once the returned
+     * future of the operation completes (in any way), or right away if starting the operation throws.
+     *
+     * @param x the x coordinate
+     * @param z the z coordinate
+     * @param r starts the operation
+     * @return the future of the operation
+     */
+    public <T> CompletableFuture<T> with(int x, int z, Supplier<CompletableFuture<T>> r) {
+        return acquire(x, z).thenCompose((permit) -> {
+            CompletableFuture<T> f;
+
+            try {
+                f = Objects.requireNonNull(r.get(), "The async operation returned no future");
+            } catch (Throwable e) {
+                permit.release();
+                return CompletableFuture.failedFuture(e);
+            }
+
+            return f.whenComplete((v, e) -> permit.release());
+        });
+    }
+
+    /**
+     * A permit of a coordinate, granted by {@link #acquire(int, int)}
+     */
+    public final class Permit implements AutoCloseable {
+        private final long key;
+        private final CompletableFuture<Void> released;
+
+        private Permit(long key, CompletableFuture<Void> released) {
+            this.key = key;
+            this.released = released;
+        }
+
+        public int getX() {
+            return CompressedNumbers.i2a(key);
+        }
+
+        public int getZ() {
+            return CompressedNumbers.i2b(key);
+        }
+
+        /**
+         * Release the permit, handing the coordinate to the next waiting permit. Releasing twice does nothing.
+         */
+        public void release() {
+            if (released.complete(null)) {
+                tails.remove(key, released);
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+}
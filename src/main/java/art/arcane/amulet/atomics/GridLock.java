@@ -18,80 +18,412 @@
 
 package art.arcane.amulet.atomics;
 
+import art.arcane.amulet.data.CompressedNumbers;
 import art.arcane.amulet.functional.Run;
+import art.arcane.amulet.metric.LockProfiler;
 import art.arcane.spatial.hunk.Hunk;
 
 import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 
+/**
+ * A fixed grid of locks. Whenever more than one cell is locked at once (regions and {@link #withAll(Runnable)})
+ * cells are acquired in one global order, layer by layer (y), row by row (z) and then cell by cell (x), so overlapping
+ * regions locked by different threads can never deadlock each other.
+ * <p>
+ * A grid created with a height locks 3D cells through the methods ending in 3, such as
+ * {@link #with3(int, int, int, Runnable)}. They are named apart from the 2D methods, since a call like
+ * tryLock(x, z, 500) would otherwise resolve to a 3D cell. The 2D (x, z) methods lock whole columns of such a grid.
+ */
 public class GridLock {
     private final Hunk<ReentrantLock> locks;
+    private volatile LockProfiler profiler;
 
     public GridLock(int x, int z) {
-        this.locks = Hunk.newAtomicHunk(x, 1, z);
-        locks.iterateSync((a, b, c) -> locks.set(a, b, c, new ReentrantLock()));
+        this(x, z, LockType.REENTRANT);
+    }
+
+    /**
+     * @param x    the width of the grid
+     * @param z    the depth of the grid
+     * @param type the kind of lock created for each cell
+     */
+    public GridLock(int x, int z, LockType type) {
+        this(x, 1, z, type);
+    }
+
+    /**
+     * Create a 3D grid of locks
+     *
+     * @param x the width of the grid
+     * @param y the height of the grid
+     * @param z the depth of the grid
+     */
+    public GridLock(int x, int y, int z) {
+        this(x, y, z, LockType.REENTRANT);
+    }
+
+    /**
+     * Create a 3D grid of locks
+     *
+     * @param x    the width of the grid
+     * @param y    the height of the grid
+     * @param z    the depth of the grid
+     * @param type the kind of lock created for each cell
+     */
+    public GridLock(int x, int y, int z, LockType type) {
+        this.locks = Hunk.newAtomicHunk(x, y, z);
+        locks.iterateSync((a, b, c) -> locks.set(a, b, c, type.create()));
     }
 
     public void with(int x, int z, Runnable r) {
-        lock(x, z);
-        r.run();
-        unlock(x, z);
+        withRegion(column(x, z), r);
     }
 
     public void withNasty(int x, int z, Run.Throwable r) throws Throwable {
-        lock(x, z);
-        r.run();
-        unlock(x, z);
+        Region region = column(x, z);
+        long token = lockRegion(region);
+        try {
+            r.run();
+        } finally {
+            unlockRegion(region, region.size(), token);
+        }
     }
 
     public void withIO(int x, int z, Run.IO r) throws IOException {
-        lock(x, z);
-        r.run();
-        unlock(x, z);
+        withRegionIO(column(x, z), r);
     }
 
     public <T> T withResult(int x, int z, Supplier<T> r) {
-        lock(x, z);
-        T t = r.get();
-        unlock(x, z);
-        return t;
+        return withRegionResult(column(x, z), r);
+    }
+
+    public void with3(int x, int y, int z, Runnable r) {
+        withRegion(cell(x, y, z), r);
+    }
+
+    public void withIO3(int x, int y, int z, Run.IO r) throws IOException {
+        withRegionIO(cell(x, y, z), r);
+    }
+
+    public <T> T withResult3(int x, int y, int z, Supplier<T> r) {
+        return withRegionResult(cell(x, y, z), r);
+    }
+
+    /**
+     * Lock every cell (or column) of the rectangle between two corners (inclusive), run, then unlock them.
+     * The rectangle is clipped to the grid so neighbourhoods of edge cells can be locked without bounds checks.
+     *
+     * @param x1 the x of one corner
+     * @param z1 the z of one corner
+     * @param x2 the x of the opposite corner
+     * @param z2 the z of the opposite corner
+     * @param r  the runnable
+     */
+    public void withRegion(int x1, int z1, int x2, int z2, Runnable r) {
+        withRegion(region(x1, 0, z1, x2, locks.getHeight() - 1, z2), r);
+    }
+
+    /**
+     * Lock every cell (or column) of the rectangle between two corners (inclusive) and get a result
+     *
+     * @see #withRegion(int, int, int, int, Runnable)
+     */
+    public <T> T withRegionResult(int x1, int z1, int x2, int z2, Supplier<T> r) {
+        return withRegionResult(region(x1, 0, z1, x2, locks.getHeight() - 1, z2), r);
+    }
+
+    /**
+     * Lock every cell of the box between two corners (inclusive), run, then unlock them.
+     * The box is clipped to the grid.
+     *
+     * @param x1 the x of one corner
+     * @param y1 the y of one corner
+     * @param z1 the z of one corner
+     * @param x2 the x of the opposite corner
+     * @param y2 the y of the opposite corner
+     * @param z2 the z of the opposite corner
+     * @param r  the runnable
+     */
+    public void withRegion(int x1, int y1, int z1, int x2, int y2, int z2, Runnable r) {
+        withRegion(region(x1, y1, z1, x2, y2, z2), r);
+    }
+
+    /**
+     * Lock every cell of the box between two corners (inclusive) and get a result
+     *
+     * @see #withRegion(int, int, int, int, int, int, Runnable)
+     */
+    public <T> T withRegionResult(int x1, int y1, int z1, int x2, int y2, int z2, Supplier<T> r) {
+        return withRegionResult(region(x1, y1, z1, x2, y2, z2), r);
+    }
+
+    /**
+     * Lock every cell (or column) of the rectangle between two corners (inclusive) without ever blocking on a held cell.
+     * If any cell is held, every cell taken so far is released and the whole region is retried after a randomized,
+     * growing backoff. Other threads are never blocked by a half locked region this way.
+     *
+     * @param x1        the x of one corner
+     * @param z1        the z of one corner
+     * @param x2        the x of the opposite corner
+     * @param z2        the z of the opposite corner
+     * @param msTimeout give up after this many milliseconds
+     * @param r         the runnable
+     * @return true if the region was locked and the runnable ran, false if the timeout passed first
+     */
+    public boolean tryWithRegion(int x1, int z1, int x2, int z2, long msTimeout, Runnable r) {
+        return tryWithRegion(region(x1, 0, z1, x2, locks.getHeight() - 1, z2), msTimeout, r);
+    }
+
+    /**
+     * Lock every cell of the box between two corners (inclusive) without ever blocking on a held cell
+     *
+     * @see #tryWithRegion(int, int, int, int, long, Runnable)
+     */
+    public boolean tryWithRegion(int x1, int y1, int z1, int x2, int y2, int z2, long msTimeout, Runnable r) {
+        return tryWithRegion(region(x1, y1, z1, x2, y2, z2), msTimeout, r);
     }
 
     public void withAll(Runnable r) {
-        locks.iterateSync((a, b, c, d) -> d.lock());
-        r.run();
-        locks.iterateSync((a, b, c, d) -> d.unlock());
+        withRegion(region(0, 0, 0, locks.getWidth() - 1, locks.getHeight() - 1, locks.getDepth() - 1), r);
     }
 
     public <T> T withAllResult(Supplier<T> r) {
-        locks.iterateSync((a, b, c, d) -> d.lock());
-        T t = r.get();
-        locks.iterateSync((a, b, c, d) -> d.unlock());
-
-        return t;
+        return withRegionResult(region(0, 0, 0, locks.getWidth() - 1, locks.getHeight() - 1, locks.getDepth() - 1), r);
     }
 
     public boolean tryLock(int x, int z) {
-        return locks.get(x, 0, z).tryLock();
+        return tryLockRegion(column(x, z));
     }
 
     public boolean tryLock(int x, int z, long timeout) {
+        return tryWithTimeout(column(x, z), timeout);
+    }
+
+    public void lock(int x, int z) {
+        lockRegion(column(x, z));
+    }
+
+    public void unlock(int x, int z) {
+        Region region = column(x, z);
+        unlockRegion(region, region.size(), 0);
+    }
+
+    public boolean tryLock3(int x, int y, int z) {
+        return locks.get(x, y, z).tryLock();
+    }
+
+    public boolean tryLock3(int x, int y, int z, long timeout) {
+        return tryWithTimeout(cell(x, y, z), timeout);
+    }
+
+    public void lock3(int x, int y, int z) {
+        lockRegion(cell(x, y, z));
+    }
+
+    public void unlock3(int x, int y, int z) {
+        locks.get(x, y, z).unlock();
+    }
+
+    /**
+     * Measure the contention of this grid, only acquisitions through the with helpers record their hold time
+     *
+     * @param profiler the profiler, or null to stop profiling
+     * @return this GridLock
+     */
+    public GridLock profile(LockProfiler profiler) {
+        this.profiler = profiler;
+        return this;
+    }
+
+    public LockProfiler getProfiler() {
+        return profiler;
+    }
+
+    private void withRegion(Region region, Runnable r) {
+        long token = lockRegion(region);
         try {
-            return locks.get(x, 0, z).tryLock(timeout, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            r.run();
+        } finally {
+            unlockRegion(region, region.size(), token);
         }
+    }
 
-        return false;
+    private <T> T withRegionResult(Region region, Supplier<T> r) {
+        long token = lockRegion(region);
+        try {
+            return r.get();
+        } finally {
+            unlockRegion(region, region.size(), token);
+        }
     }
 
-    public void lock(int x, int z) {
-        locks.get(x, 0, z).lock();
+    private void withRegionIO(Region region, Run.IO r) throws IOException {
+        long token = lockRegion(region);
+        try {
+            r.run();
+        } finally {
+            unlockRegion(region, region.size(), token);
+        }
     }
 
-    public void unlock(int x, int z) {
-        locks.get(x, 0, z).unlock();
+    private boolean tryWithRegion(Region region, long msTimeout, Runnable r) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(msTimeout);
+        long backoff = 1_000;
+
+        while (!tryLockRegion(region)) {
+            long left = deadline - System.nanoTime();
+
+            if (left <= 0 || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+
+            LockSupport.parkNanos(Math.min(left, ThreadLocalRandom.current().nextLong(backoff) + 1));
+            backoff = Math.min(backoff << 1, 1_000_000);
+        }
+
+        try {
+            r.run();
+        } finally {
+            unlockRegion(region, region.size(), 0);
+        }
+
+        return true;
+    }
+
+    private boolean tryWithTimeout(Region region, long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        for (int i = 0; i < region.size(); i++) {
+            try {
+                long left = deadline - System.nanoTime();
+
+                if (locks.get(region.x(i), region.y(i), region.z(i)).tryLock(Math.max(left, 0), TimeUnit.NANOSECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+
+            unlockRegion(region, i, 0);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param p the profiler measuring this acquisition, or null
+     */
+    private void acquire(int x, int y, int z, LockProfiler p) {
+        ReentrantLock lock = locks.get(x, y, z);
+
+        if (p != null) {
+            p.acquire(key(x, y, z), dimensions(), lock);
+        } else {
+            lock.lock();
+        }
+    }
+
+    private void release(int x, int y, int z, long token) {
+        locks.get(x, y, z).unlock();
+        LockProfiler p = profiler;
+
+        if (token != 0 && p != null) {
+            p.release(key(x, y, z), dimensions(), token);
+        }
+    }
+
+    private long key(int x, int y, int z) {
+        return locks.getHeight() == 1 ? CompressedNumbers.i2(x, z) : CompressedNumbers.morton3(x, y, z);
+    }
+
+    private int dimensions() {
+        return locks.getHeight() == 1 ? 2 : 3;
+    }
+
+    private Region cell(int x, int y, int z) {
+        return new Region(x, y, z, x, y, z);
+    }
+
+    private Region column(int x, int z) {
+        return new Region(x, 0, z, x, locks.getHeight() - 1, z);
+    }
+
+    private Region region(int x1, int y1, int z1, int x2, int y2, int z2) {
+        return new Region(Math.max(Math.min(x1, x2), 0), Math.max(Math.min(y1, y2), 0), Math.max(Math.min(z1, z2), 0),
+                Math.min(Math.max(x1, x2), locks.getWidth() - 1), Math.min(Math.max(y1, y2), locks.getHeight() - 1),
+                Math.min(Math.max(z1, z2), locks.getDepth() - 1));
+    }
+
+    /**
+     * A region is sampled as a whole, either every cell of it is measured or none
+     *
+     * @return the profiler token of the whole region, 0 if not profiled
+     */
+    private long lockRegion(Region region) {
+        LockProfiler p = profiler;
+
+        if (p != null && !p.sample()) {
+            p = null;
+        }
+
+        for (int i = 0; i < region.size(); i++) {
+            try {
+                acquire(region.x(i), region.y(i), region.z(i), p);
+            } catch (Throwable e) {
+                unlockRegion(region, i, 0);
+                throw e;
+            }
+        }
+
+        return p != null ? Math.max(System.nanoTime(), 1) : 0;
+    }
+
+    private boolean tryLockRegion(Region region) {
+        for (int i = 0; i < region.size(); i++) {
+            if (!locks.get(region.x(i), region.y(i), region.z(i)).tryLock()) {
+                unlockRegion(region, i, 0);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Unlock the first cells of the region (in locking order) in reverse order
+     *
+     * @param count the amount of cells which were locked
+     */
+    private void unlockRegion(Region region, int count, long token) {
+        for (int i = count - 1; i >= 0; i--) {
+            release(region.x(i), region.y(i), region.z(i), token);
+        }
+    }
+
+    /**
+     * A box of cells, ordered by y, then z, then x
+     */
+    private record Region(int x1, int y1, int z1, int x2, int y2, int z2) {
+        int size() {
+            return x2 < x1 || y2 < y1 || z2 < z1 ? 0 : (x2 - x1 + 1) * (y2 - y1 + 1) * (z2 - z1 + 1);
+        }
+
+        int x(int i) {
+            return x1 + (i % (x2 - x1 + 1));
+        }
+
+        int z(int i) {
+            return z1 + ((i / (x2 - x1 + 1)) % (z2 - z1 + 1));
+        }
+
+        int y(int i) {
+            return y1 + (i / ((x2 - x1 + 1) * (z2 - z1 + 1)));
+        }
     }
 }
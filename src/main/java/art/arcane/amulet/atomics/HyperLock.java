@@ -20,18 +20,40 @@ package art.arcane.amulet.atomics;
 
 import art.arcane.amulet.data.CompressedNumbers;
 import art.arcane.amulet.functional.Run;
+import art.arcane.amulet.metric.LockProfiler;
 import com.google.common.util.concurrent.AtomicDoubleArray;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 
+/**
+ * Locks by x z coordinates. By default locks are created on demand and kept in a size capped map, which may evict
+ * (and recreate) a lock that is still held once over capacity. A {@link #striped(int)} HyperLock instead maps every
+ * coordinate onto a fixed array of locks by a mixed hash, so lookups never allocate and never lose a held lock.
+ * Different coordinates may share a stripe, the locks are reentrant so a thread locking two of them is still fine.
+ * Locking many keys at once ({@link #withAll(long[], Runnable)} and tryLockAll) needs a striped HyperLock.
+ * <p>
+ * The 3D methods ({@link #with3(int, int, int, Runnable)}, lock3 and so on) lock coordinates by their
+ * {@link CompressedNumbers#morton3(int, int, int)} key, so vertical neighbours can be locked independently. They are
+ * named apart from the 2D methods, since a call like tryLock(x, z, 500) would otherwise resolve to a 3D cell.
+ * 3D keys have locks (or stripes) of their own, so a 3D cell never blocks a 2D coordinate or the other way around.
+ * This also means a 3D cell does not lock its (x, z) column.
+ * <p>
+ * Callers that must not block a thread can use an {@link AsyncHyperLock} instead, which does not exclude these locks.
+ */
 public class HyperLock {
     private final ConcurrentLinkedHashMap<Long, ReentrantLock> locks;
+    private final ConcurrentLinkedHashMap<Long, ReentrantLock> locks3;
+    private final ReentrantLock[] stripes;
+    private final ReentrantLock[] stripes3;
+    private final int mask;
     private boolean enabled = true;
-    private boolean fair = false;
+    private volatile LockProfiler profiler;
+    private final LockType type;
 
     public HyperLock() {
         this(1024, false);
@@ -42,8 +64,24 @@ public class HyperLock {
     }
 
     public HyperLock(int capacity, boolean fair) {
-        this.fair = fair;
-        locks = new ConcurrentLinkedHashMap.Builder<Long, ReentrantLock>()
+        this(capacity, fair ? LockType.FAIR : LockType.REENTRANT);
+    }
+
+    /**
+     * @param capacity the most locks kept around, for 2D and 3D keys each
+     * @param type     the kind of lock created for each coordinate
+     */
+    public HyperLock(int capacity, LockType type) {
+        this.type = type;
+        this.stripes = null;
+        this.stripes3 = null;
+        this.mask = 0;
+        this.locks = lockMap(capacity);
+        this.locks3 = lockMap(capacity);
+    }
+
+    private static ConcurrentLinkedHashMap<Long, ReentrantLock> lockMap(int capacity) {
+        return new ConcurrentLinkedHashMap.Builder<Long, ReentrantLock>()
                 .initialCapacity(capacity)
                 .maximumWeightedCapacity(capacity)
                 .listener((k, v) -> {
@@ -55,64 +93,376 @@ public class HyperLock {
                 .build();
     }
 
+    private HyperLock(ReentrantLock[] stripes, ReentrantLock[] stripes3, LockType type) {
+        this.type = type;
+        this.stripes = stripes;
+        this.stripes3 = stripes3;
+        this.mask = stripes.length - 1;
+        this.locks = null;
+        this.locks3 = null;
+    }
+
+    /**
+     * Create a striped HyperLock with a fixed amount of locks shared by all coordinates
+     *
+     * @param stripes the amount of locks, rounded up to a power of two. More stripes means less false sharing
+     * @return the striped HyperLock
+     */
+    public static HyperLock striped(int stripes) {
+        return striped(stripes, false);
+    }
+
+    /**
+     * Create a striped HyperLock with a fixed amount of locks shared by all coordinates
+     *
+     * @param stripes the amount of locks, rounded up to a power of two. More stripes means less false sharing
+     * @param fair    if the locks should be fair
+     * @return the striped HyperLock
+     */
+    public static HyperLock striped(int stripes, boolean fair) {
+        return striped(stripes, fair ? LockType.FAIR : LockType.REENTRANT);
+    }
+
+    /**
+     * Create a striped HyperLock with a fixed amount of locks shared by all coordinates
+     *
+     * @param stripes the amount of locks, rounded up to a power of two. More stripes means less false sharing
+     * @param type    the kind of lock used for each stripe
+     * @return the striped HyperLock
+     */
+    public static HyperLock striped(int stripes, LockType type) {
+        if (stripes <= 0 || stripes > 1 << 30) {
+            throw new IllegalArgumentException("The stripe count must be between 1 and 2^30: " + stripes);
+        }
+
+        int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        ReentrantLock[] locks = new ReentrantLock[size];
+        ReentrantLock[] locks3 = new ReentrantLock[size];
+
+        for (int i = 0; i < size; i++) {
+            locks[i] = type.create();
+            locks3[i] = type.create();
+        }
+
+        return new HyperLock(locks, locks3, type);
+    }
+
+    public LockType getType() {
+        return type;
+    }
+
+    public boolean isStriped() {
+        return stripes != null;
+    }
+
+    /**
+     * @return the amount of stripes, or 0 if this HyperLock is not striped
+     */
+    public int getStripes() {
+        return stripes == null ? 0 : stripes.length;
+    }
+
+    /**
+     * Measure the contention of this lock, only acquisitions through the with helpers record their hold time
+     *
+     * @param profiler the profiler, or null to stop profiling
+     * @return this HyperLock
+     */
+    public HyperLock profile(LockProfiler profiler) {
+        this.profiler = profiler;
+        return this;
+    }
+
+    public LockProfiler getProfiler() {
+        return profiler;
+    }
+
     public void with(int x, int z, Runnable r) {
-        lock(x, z);
-        r.run();
-        unlock(x, z);
+        withLong(CompressedNumbers.i2(x, z), r);
     }
 
     public void withLong(long k, Runnable r) {
-        lock(CompressedNumbers.i2a(k), CompressedNumbers.i2b(k));
-        r.run();
-        unlock(CompressedNumbers.i2a(k), CompressedNumbers.i2b(k));
+        ReentrantLock lock = lockOf(k, 2);
+        long token = lock(lock, k, 2);
+        try {
+            r.run();
+        } finally {
+            unlock(lock, k, 2, token);
+        }
     }
 
     public void withNasty(int x, int z, Run.Throwable r) throws Throwable {
-        lock(x, z);
-        Throwable ee = null;
+        long k = CompressedNumbers.i2(x, z);
+        ReentrantLock lock = lockOf(k, 2);
+        long token = lock(lock, k, 2);
         try {
             r.run();
-        } catch (Throwable e) {
-            ee = e;
         } finally {
-            unlock(x, z);
-
-            if (ee != null) {
-                throw ee;
-            }
+            unlock(lock, k, 2, token);
         }
     }
 
     public void withIO(int x, int z, Run.IO r) throws IOException {
-        lock(x, z);
-        IOException ee = null;
+        long k = CompressedNumbers.i2(x, z);
+        ReentrantLock lock = lockOf(k, 2);
+        long token = lock(lock, k, 2);
         try {
             r.run();
-        } catch (IOException e) {
-            ee = e;
         } finally {
-            unlock(x, z);
+            unlock(lock, k, 2, token);
+        }
+    }
 
-            if (ee != null) {
-                throw ee;
+    public <T> T withResult(int x, int z, Supplier<T> r) {
+        long k = CompressedNumbers.i2(x, z);
+        ReentrantLock lock = lockOf(k, 2);
+        long token = lock(lock, k, 2);
+        try {
+            return r.get();
+        } finally {
+            unlock(lock, k, 2, token);
+        }
+    }
+
+    public void with3(int x, int y, int z, Runnable r) {
+        long k = CompressedNumbers.morton3(x, y, z);
+        ReentrantLock lock = lockOf(k, 3);
+        long token = lock(lock, k, 3);
+        try {
+            r.run();
+        } finally {
+            unlock(lock, k, 3, token);
+        }
+    }
+
+    public void withIO3(int x, int y, int z, Run.IO r) throws IOException {
+        long k = CompressedNumbers.morton3(x, y, z);
+        ReentrantLock lock = lockOf(k, 3);
+        long token = lock(lock, k, 3);
+        try {
+            r.run();
+        } finally {
+            unlock(lock, k, 3, token);
+        }
+    }
+
+    public <T> T withResult3(int x, int y, int z, Supplier<T> r) {
+        long k = CompressedNumbers.morton3(x, y, z);
+        ReentrantLock lock = lockOf(k, 3);
+        long token = lock(lock, k, 3);
+        try {
+            return r.get();
+        } finally {
+            unlock(lock, k, 3, token);
+        }
+    }
+
+    public boolean tryLock3(int x, int y, int z) {
+        return getLock(CompressedNumbers.morton3(x, y, z), 3).tryLock();
+    }
+
+    public boolean tryLock3(int x, int y, int z, long timeout) {
+        try {
+            return getLock(CompressedNumbers.morton3(x, y, z), 3).tryLock(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    public void lock3(int x, int y, int z) {
+        long k = CompressedNumbers.morton3(x, y, z);
+        lock(lockOf(k, 3), k, 3);
+    }
+
+    /**
+     * The lock is looked up again, so without stripes the capacity must be large enough that held keys are never
+     * evicted in between. The with methods do not have this problem.
+     */
+    public void unlock3(int x, int y, int z) {
+        long k = CompressedNumbers.morton3(x, y, z);
+        unlock(lockOf(k, 3), k, 3, 0);
+    }
+
+    /**
+     * Lock many keys at once, run, then unlock them. The locks behind the keys are deduplicated and taken in one
+     * global order, so threads locking overlapping sets of keys can never deadlock each other. Only a
+     * {@link #striped(int)} HyperLock can lock many keys, the map of the default one could evict a held lock.
+     *
+     * @param keys the keys such as {@link CompressedNumbers#i2(int, int)} of coordinates
+     * @param r    the runnable
+     * @throws IllegalStateException if this HyperLock is not striped
+     */
+    public void withAll(long[] keys, Runnable r) {
+        ReentrantLock[] held = lockAll(keys);
+        try {
+            r.run();
+        } finally {
+            unlockAll(held, held.length);
+        }
+    }
+
+    /**
+     * Lock many keys at once and get a result
+     *
+     * @see #withAll(long[], Runnable)
+     */
+    public <T> T withAllResult(long[] keys, Supplier<T> r) {
+        ReentrantLock[] held = lockAll(keys);
+        try {
+            return r.get();
+        } finally {
+            unlockAll(held, held.length);
+        }
+    }
+
+    /**
+     * Lock every key or none of them, without waiting. Release them with {@link #unlockAll(long[])}.
+     *
+     * @param keys the keys
+     * @return true if every key was locked, false if none were
+     * @throws IllegalStateException if this HyperLock is not striped
+     */
+    public boolean tryLockAll(long[] keys) {
+        requireStriped();
+
+        if (!enabled) {
+            return true;
+        }
+
+        ReentrantLock[] locks = ordered(keys);
+
+        for (int i = 0; i < locks.length; i++) {
+            if (!locks[i].tryLock()) {
+                unlockAll(locks, i);
+                return false;
             }
         }
+
+        return true;
     }
 
-    public <T> T withResult(int x, int z, Supplier<T> r) {
-        lock(x, z);
-        T t = r.get();
-        unlock(x, z);
-        return t;
+    /**
+     * Lock every key or none of them, waiting up to a timeout in total. Release them with {@link #unlockAll(long[])}.
+     * If the thread is interrupted while waiting, none are locked and the interrupt flag is set again.
+     *
+     * @param keys    the keys
+     * @param timeout the most milliseconds to wait
+     * @return true if every key was locked, false if none were
+     * @throws IllegalStateException if this HyperLock is not striped
+     */
+    public boolean tryLockAll(long[] keys, long timeout) {
+        requireStriped();
+
+        if (!enabled) {
+            return true;
+        }
+
+        ReentrantLock[] locks = ordered(keys);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        for (int i = 0; i < locks.length; i++) {
+            try {
+                if (locks[i].tryLock(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            unlockAll(locks, i);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Unlock keys locked with {@link #tryLockAll(long[])}
+     *
+     * @param keys the same keys
+     * @throws IllegalStateException if this HyperLock is not striped
+     */
+    public void unlockAll(long[] keys) {
+        requireStriped();
+
+        if (!enabled) {
+            return;
+        }
+
+        ReentrantLock[] locks = ordered(keys);
+        unlockAll(locks, locks.length);
+    }
+
+    private ReentrantLock[] lockAll(long[] keys) {
+        requireStriped();
+
+        if (!enabled) {
+            return new ReentrantLock[0];
+        }
+
+        ReentrantLock[] locks = ordered(keys);
+
+        for (int i = 0; i < locks.length; i++) {
+            try {
+                locks[i].lock();
+            } catch (Throwable e) {
+                unlockAll(locks, i);
+                throw e;
+            }
+        }
+
+        return locks;
+    }
+
+    private void unlockAll(ReentrantLock[] locks, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    private void requireStriped() {
+        if (stripes == null) {
+            throw new IllegalStateException("Only a striped HyperLock can lock many keys at once");
+        }
+    }
+
+    /**
+     * @return the distinct stripes behind the keys in locking order (by stripe index)
+     */
+    private ReentrantLock[] ordered(long[] keys) {
+        int[] order = new int[keys.length];
+
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = CompressedNumbers.mix(keys[i]) & mask;
+        }
+
+        Arrays.sort(order);
+        int distinct = 0;
+
+        for (int i = 0; i < order.length; i++) {
+            if (i == 0 || order[i] != order[i - 1]) {
+                order[distinct++] = order[i];
+            }
+        }
+
+        ReentrantLock[] locks = new ReentrantLock[distinct];
+
+        for (int i = 0; i < distinct; i++) {
+            locks[i] = stripes[order[i]];
+        }
+
+        return locks;
     }
 
     public boolean tryLock(int x, int z) {
-        return getLock(x, z).tryLock();
+        return getLock(CompressedNumbers.i2(x, z), 2).tryLock();
     }
 
     public boolean tryLock(int x, int z, long timeout) {
         try {
-            return getLock(x, z).tryLock(timeout, TimeUnit.MILLISECONDS);
+            return getLock(CompressedNumbers.i2(x, z), 2).tryLock(timeout, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -120,24 +470,72 @@ public class HyperLock {
         return false;
     }
 
-    private ReentrantLock getLock(int x, int z) {
-        return locks.computeIfAbsent(CompressedNumbers.i2(x, z), k -> new ReentrantLock(fair));
+    /**
+     * @param dimensions 2 for i2 keys, 3 for morton3 keys, which have locks of their own
+     */
+    private ReentrantLock getLock(long key, int dimensions) {
+        if (stripes != null) {
+            return (dimensions == 3 ? stripes3 : stripes)[CompressedNumbers.mix(key) & mask];
+        }
+
+        return (dimensions == 3 ? locks3 : locks).computeIfAbsent(key, k -> type.create());
     }
 
     public void lock(int x, int z) {
-        if (!enabled) {
-            return;
+        long k = CompressedNumbers.i2(x, z);
+        lock(lockOf(k, 2), k, 2);
+    }
+
+    /**
+     * The lock is looked up again, so without stripes the capacity must be large enough that held keys are never
+     * evicted in between. The with methods do not have this problem.
+     */
+    public void unlock(int x, int z) {
+        long k = CompressedNumbers.i2(x, z);
+        unlock(lockOf(k, 2), k, 2, 0);
+    }
+
+    /**
+     * @return the lock of the key, or null while disabled
+     */
+    private ReentrantLock lockOf(long key, int dimensions) {
+        return enabled ? getLock(key, dimensions) : null;
+    }
+
+    /**
+     * Lock the lock looked up for the key. Unlock that same lock later, looking it up again could return a new lock
+     * once the held one has been evicted.
+     *
+     * @param lock       the lock from {@link #lockOf(long, int)}, null does nothing
+     * @param dimensions 2 for i2 keys, 3 for morton3 keys, only used by the profiler
+     * @return the profiler token of this acquisition, 0 if it was not profiled
+     */
+    private long lock(ReentrantLock lock, long key, int dimensions) {
+        if (lock == null) {
+            return 0;
+        }
+
+        LockProfiler p = profiler;
+
+        if (p != null && p.sample()) {
+            return p.acquire(key, dimensions, lock);
         }
 
-        getLock(x, z).lock();
+        lock.lock();
+        return 0;
     }
 
-    public void unlock(int x, int z) {
-        if (!enabled) {
+    private void unlock(ReentrantLock lock, long key, int dimensions, long token) {
+        if (lock == null) {
             return;
         }
 
-        getLock(x, z).unlock();
+        lock.unlock();
+        LockProfiler p = profiler;
+
+        if (token != 0 && p != null) {
+            p.release(key, dimensions, token);
+        }
     }
 
     public void disable() {
@@ -0,0 +1,50 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.atomics;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The kind of lock a {@link HyperLock} or {@link GridLock} creates for its keys
+ */
+public enum LockType {
+    /**
+     * A plain non fair {@link ReentrantLock}
+     */
+    REENTRANT,
+
+    /**
+     * A fair {@link ReentrantLock}, threads get the lock in the order they asked for it
+     */
+    FAIR,
+
+    /**
+     * A {@link SpinParkLock} which spins adaptively before parking. Meant for very short critical sections, but only
+     * worth it where a benchmark shows it ahead of {@link #REENTRANT}
+     */
+    SPIN_PARK;
+
+    public ReentrantLock create() {
+        return switch (this) {
+            case REENTRANT -> new ReentrantLock(false);
+            case FAIR -> new ReentrantLock(true);
+            case SPIN_PARK -> new SpinParkLock();
+        };
+    }
+}
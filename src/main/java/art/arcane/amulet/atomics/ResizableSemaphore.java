@@ -0,0 +1,117 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.atomics;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A semaphore which knows how many permits it has in total and can be resized while in use.
+ * Shrinking below the permits currently handed out makes the available permits negative until enough are released.
+ */
+public class ResizableSemaphore extends Semaphore {
+    private int permits;
+
+    public ResizableSemaphore(int permits) {
+        this(permits, false);
+    }
+
+    public ResizableSemaphore(int permits, boolean fair) {
+        super(permits, fair);
+
+        if (permits < 0) {
+            throw new IllegalArgumentException("Permits cannot be negative: " + permits);
+        }
+
+        this.permits = permits;
+    }
+
+    /**
+     * @return the total amount of permits, acquired or not
+     */
+    public synchronized int getPermits() {
+        return permits;
+    }
+
+    /**
+     * Change the total amount of permits. Growing releases the new permits to waiting threads right away,
+     * shrinking takes effect as acquired permits are released.
+     *
+     * @param permits the new total
+     */
+    public synchronized void setPermits(int permits) {
+        if (permits < 0) {
+            throw new IllegalArgumentException("Permits cannot be negative: " + permits);
+        }
+
+        int delta = permits - this.permits;
+        this.permits = permits;
+
+        if (delta > 0) {
+            release(delta);
+        } else if (delta < 0) {
+            reducePermits(-delta);
+        }
+    }
+
+    /**
+     * Acquire every permit, run, then release them. The total is read again while waiting, so resizing the semaphore
+     * in the meantime neither leaves this waiting for permits which no longer exist nor runs with fewer than all.
+     *
+     * @param r the runnable
+     */
+    public void withAll(Runnable r) {
+        int held = acquireAll();
+        try {
+            r.run();
+        } finally {
+            release(held);
+        }
+    }
+
+    /**
+     * @return the amount of permits acquired, at least the total at the time they were all held
+     */
+    private int acquireAll() {
+        boolean interrupted = false;
+        int held = 0;
+
+        try {
+            while (true) {
+                int missing = getPermits() - held;
+
+                if (missing <= 0) {
+                    return held;
+                }
+
+                try {
+                    if (tryAcquire(missing, 10, TimeUnit.MILLISECONDS)) {
+                        held += missing;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
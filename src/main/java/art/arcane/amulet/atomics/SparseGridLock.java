@@ -0,0 +1,309 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.atomics;
+
+import art.arcane.amulet.data.CompressedNumbers;
+import art.arcane.amulet.functional.Run;
+import art.arcane.amulet.metric.LockProfiler;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A grid of locks without bounds. Unlike {@link GridLock} nothing is preallocated, a cell only has a lock while some
+ * thread holds or waits for it. Every holder and waiter counts a reference on the cell and the lock is dropped once the
+ * last reference is gone, so memory scales with the amount of threads rather than the size of the world, and a held
+ * lock is never reclaimed. Coordinates may be negative.
+ * <p>
+ * Regions are locked row by row (z) and then cell by cell (x), like {@link GridLock}.
+ */
+public class SparseGridLock {
+    private final Map<Long, Cell> cells = new ConcurrentHashMap<>();
+    private final LockType type;
+    private volatile LockProfiler profiler;
+
+    public SparseGridLock() {
+        this(LockType.REENTRANT);
+    }
+
+    /**
+     * @param type the kind of lock created for active cells
+     */
+    public SparseGridLock(LockType type) {
+        this.type = type;
+    }
+
+    public void with(int x, int z, Runnable r) {
+        long key = CompressedNumbers.i2(x, z);
+        long token = acquire(key);
+        try {
+            r.run();
+        } finally {
+            release(key, token);
+        }
+    }
+
+    public void withNasty(int x, int z, Run.Throwable r) throws Throwable {
+        long key = CompressedNumbers.i2(x, z);
+        long token = acquire(key);
+        try {
+            r.run();
+        } finally {
+            release(key, token);
+        }
+    }
+
+    public void withIO(int x, int z, Run.IO r) throws IOException {
+        long key = CompressedNumbers.i2(x, z);
+        long token = acquire(key);
+        try {
+            r.run();
+        } finally {
+            release(key, token);
+        }
+    }
+
+    public <T> T withResult(int x, int z, Supplier<T> r) {
+        long key = CompressedNumbers.i2(x, z);
+        long token = acquire(key);
+        try {
+            return r.get();
+        } finally {
+            release(key, token);
+        }
+    }
+
+    /**
+     * Lock every cell of the rectangle between two corners (inclusive), run, then unlock them
+     *
+     * @param x1 the x of one corner
+     * @param z1 the z of one corner
+     * @param x2 the x of the opposite corner
+     * @param z2 the z of the opposite corner
+     * @param r  the runnable
+     */
+    public void withRegion(int x1, int z1, int x2, int z2, Runnable r) {
+        long[] keys = region(x1, z1, x2, z2);
+        long token = lockAll(keys);
+        try {
+            r.run();
+        } finally {
+            unlockAll(keys, keys.length, token);
+        }
+    }
+
+    /**
+     * Lock every cell of the rectangle between two corners (inclusive) and get a result
+     *
+     * @see #withRegion(int, int, int, int, Runnable)
+     */
+    public <T> T withRegionResult(int x1, int z1, int x2, int z2, Supplier<T> r) {
+        long[] keys = region(x1, z1, x2, z2);
+        long token = lockAll(keys);
+        try {
+            return r.get();
+        } finally {
+            unlockAll(keys, keys.length, token);
+        }
+    }
+
+    public boolean tryLock(int x, int z) {
+        long key = CompressedNumbers.i2(x, z);
+        Cell cell = retain(key);
+
+        if (cell.lock.tryLock()) {
+            return true;
+        }
+
+        free(key);
+        return false;
+    }
+
+    public boolean tryLock(int x, int z, long timeout) {
+        long key = CompressedNumbers.i2(x, z);
+        Cell cell = retain(key);
+
+        try {
+            if (cell.lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        free(key);
+        return false;
+    }
+
+    public void lock(int x, int z) {
+        acquire(CompressedNumbers.i2(x, z));
+    }
+
+    public void unlock(int x, int z) {
+        release(CompressedNumbers.i2(x, z), 0);
+    }
+
+    /**
+     * @return the amount of cells currently held or waited for
+     */
+    public int getActiveCells() {
+        return cells.size();
+    }
+
+    /**
+     * Measure the contention of this grid, only acquisitions through the with helpers record their hold time
+     *
+     * @param profiler the profiler, or null to stop profiling
+     * @return this SparseGridLock
+     */
+    public SparseGridLock profile(LockProfiler profiler) {
+        this.profiler = profiler;
+        return this;
+    }
+
+    public LockProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * @return the profiler token of this acquisition, 0 if it was not profiled
+     */
+    private long acquire(long key) {
+        LockProfiler p = profiler;
+        return acquire(key, p != null && p.sample() ? p : null);
+    }
+
+    /**
+     * @param p the profiler measuring this acquisition, or null
+     * @return the profiler token of this acquisition, 0 if it was not profiled
+     */
+    private long acquire(long key, LockProfiler p) {
+        ReentrantLock lock = retain(key).lock;
+
+        try {
+            if (p != null) {
+                return p.acquire(key, lock);
+            }
+
+            lock.lock();
+            return 0;
+        } catch (Throwable e) {
+            free(key);
+            throw e;
+        }
+    }
+
+    private void release(long key, long token) {
+        Cell cell = cells.get(key);
+
+        if (cell == null) {
+            throw new IllegalMonitorStateException("Cell " + CompressedNumbers.i2a(key) + ", " + CompressedNumbers.i2b(key) + " is not locked");
+        }
+
+        cell.lock.unlock();
+        free(key);
+        LockProfiler p = profiler;
+
+        if (token != 0 && p != null) {
+            p.release(key, token);
+        }
+    }
+
+    private Cell retain(long key) {
+        return cells.compute(key, (k, cell) -> {
+            if (cell == null) {
+                cell = new Cell(type.create());
+            }
+
+            cell.refs++;
+            return cell;
+        });
+    }
+
+    private void free(long key) {
+        cells.computeIfPresent(key, (k, cell) -> --cell.refs <= 0 ? null : cell);
+    }
+
+    /**
+     * A region is sampled as a whole, like in {@link GridLock}, either every cell of it is measured or none
+     *
+     * @return the profiler token of the whole region, 0 if not profiled
+     */
+    private long lockAll(long[] keys) {
+        LockProfiler p = profiler;
+
+        if (p != null && !p.sample()) {
+            p = null;
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            try {
+                acquire(keys[i], p);
+            } catch (Throwable e) {
+                unlockAll(keys, i, 0);
+                throw e;
+            }
+        }
+
+        return p != null ? Math.max(System.nanoTime(), 1) : 0;
+    }
+
+    private void unlockAll(long[] keys, int count, long token) {
+        for (int i = count - 1; i >= 0; i--) {
+            release(keys[i], token);
+        }
+    }
+
+    private static long[] region(int x1, int z1, int x2, int z2) {
+        int minX = Math.min(x1, x2);
+        int minZ = Math.min(z1, z2);
+        long w = (long) Math.max(x1, x2) - minX + 1;
+        long d = (long) Math.max(z1, z2) - minZ + 1;
+
+        if (w * d > 1 << 20) {
+            throw new IllegalArgumentException("Region of " + w + "x" + d + " cells is too large to lock");
+        }
+
+        long[] keys = new long[(int) (w * d)];
+
+        for (int z = 0; z < d; z++) {
+            for (int x = 0; x < w; x++) {
+                keys[(int) (z * w + x)] = CompressedNumbers.i2(minX + x, minZ + z);
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * The lock of an active cell, refs is only touched inside map computations of its key
+     */
+    private static class Cell {
+        private final ReentrantLock lock;
+        private int refs;
+
+        private Cell(ReentrantLock lock) {
+            this.lock = lock;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.atomics;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A reentrant lock which spins for a while before parking, meant for critical sections of a few hundred nanoseconds.
+ * The spin budget adapts per lock, it grows whenever spinning got the lock and shrinks whenever the thread had to park
+ * anyways, so long critical sections quickly stop wasting cpu on spinning.
+ * <p>
+ * Whether spinning beats parking depends on the hardware, the thread count and the length of the critical sections.
+ * It has not been measured to be faster than a plain {@link ReentrantLock}, run the LockBenchmark (./gradlew jmh) on
+ * the target machine before switching.
+ */
+public class SpinParkLock extends ReentrantLock {
+    private static final int MIN_SPINS = 16;
+    private static final int MAX_SPINS = 4096;
+    private static final boolean MULTICORE = Runtime.getRuntime().availableProcessors() > 1;
+    // Racy on purpose, a lost update just means a slightly off budget
+    private int spins = 128;
+
+    public SpinParkLock() {
+        super(false);
+    }
+
+    @Override
+    public void lock() {
+        if (tryLock()) {
+            return;
+        }
+
+        if (MULTICORE) {
+            int budget = spins;
+
+            for (int i = 0; i < budget; i++) {
+                Thread.onSpinWait();
+
+                if (!isLocked() && tryLock()) {
+                    spins = Math.min(MAX_SPINS, Math.max(budget, i << 1) + (budget >> 2));
+                    return;
+                }
+            }
+
+            spins = Math.max(MIN_SPINS, budget >> 1);
+        }
+
+        super.lock();
+    }
+
+    /**
+     * @return the amount of spins the next contended acquisition will try before parking
+     */
+    public int getSpinBudget() {
+        return spins;
+    }
+}
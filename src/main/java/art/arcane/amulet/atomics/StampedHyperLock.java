@@ -0,0 +1,205 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.atomics;
+
+import art.arcane.amulet.data.CompressedNumbers;
+import art.arcane.amulet.functional.Run;
+
+import java.io.IOException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Read / write locks by x z coordinates. Any amount of readers of a coordinate run at the same time, writers are
+ * exclusive, and optimistic reads take no lock at all as long as no writer got in between.
+ * <p>
+ * Coordinates are striped over a fixed array of {@link StampedLock}s like a {@link HyperLock#striped(int)} HyperLock.
+ * Stamped locks are not reentrant, so never take a write lock while holding any lock of this HyperLock on the same
+ * thread (two coordinates may share a stripe). Nested read locks are not safe either: a new reader queues behind a
+ * waiting writer, which itself waits for the outer read lock, so reading one coordinate while reading another that
+ * shares its stripe can deadlock.
+ */
+public class StampedHyperLock {
+    private final StampedLock[] stripes;
+    private final int mask;
+
+    public StampedHyperLock() {
+        this(1024);
+    }
+
+    /**
+     * @param stripes the amount of locks, rounded up to a power of two
+     */
+    public StampedHyperLock(int stripes) {
+        if (stripes <= 0 || stripes > 1 << 30) {
+            throw new IllegalArgumentException("The stripe count must be between 1 and 2^30: " + stripes);
+        }
+
+        int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new StampedLock[size];
+        this.mask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new StampedLock();
+        }
+    }
+
+    public void withRead(int x, int z, Runnable r) {
+        StampedLock lock = getLock(x, z);
+        long stamp = lock.readLock();
+        try {
+            r.run();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public <T> T withReadResult(int x, int z, Supplier<T> r) {
+        StampedLock lock = getLock(x, z);
+        long stamp = lock.readLock();
+        try {
+            return r.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void withReadIO(int x, int z, Run.IO r) throws IOException {
+        StampedLock lock = getLock(x, z);
+        long stamp = lock.readLock();
+        try {
+            r.run();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void withWrite(int x, int z, Runnable r) {
+        StampedLock lock = getLock(x, z);
+        long stamp = lock.writeLock();
+        try {
+            r.run();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public <T> T withWriteResult(int x, int z, Supplier<T> r) {
+        StampedLock lock = getLock(x, z);
+        long stamp = lock.writeLock();
+        try {
+            return r.get();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void withWriteIO(int x, int z, Run.IO r) throws IOException {
+        StampedLock lock = getLock(x, z);
+        long stamp = lock.writeLock();
+        try {
+            r.run();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Read without locking. If a writer locked the coordinate while reading, the read is retried under a read lock.
+     * The reader must only read (and cope with seeing torn state, its result is thrown away in that case). A
+     * RuntimeException thrown while a writer interfered is thrown away as well, it is only rethrown if no writer did.
+     * The retry takes a read lock, so the reader must not lock this HyperLock itself (see the class docs).
+     *
+     * @param x the x coordinate
+     * @param z the z coordinate
+     * @param r the read
+     * @return the result of a read no writer interfered with
+     */
+    public <T> T withOptimistic(int x, int z, Supplier<T> r) {
+        StampedLock lock = getLock(x, z);
+        long stamp = lock.tryOptimisticRead();
+
+        if (stamp != 0) {
+            try {
+                T t = r.get();
+
+                if (lock.validate(stamp)) {
+                    return t;
+                }
+            } catch (RuntimeException e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return r.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return a stamp to {@link #validate(int, int, long)} after reading, or 0 if the coordinate is write locked
+     */
+    public long tryOptimisticRead(int x, int z) {
+        return getLock(x, z).tryOptimisticRead();
+    }
+
+    /**
+     * @return true if no writer locked the coordinate since the stamp was taken
+     */
+    public boolean validate(int x, int z, long stamp) {
+        return getLock(x, z).validate(stamp);
+    }
+
+    public long readLock(int x, int z) {
+        return getLock(x, z).readLock();
+    }
+
+    public long tryReadLock(int x, int z) {
+        return getLock(x, z).tryReadLock();
+    }
+
+    public void unlockRead(int x, int z, long stamp) {
+        getLock(x, z).unlockRead(stamp);
+    }
+
+    public long writeLock(int x, int z) {
+        return getLock(x, z).writeLock();
+    }
+
+    public long tryWriteLock(int x, int z) {
+        return getLock(x, z).tryWriteLock();
+    }
+
+    public void unlockWrite(int x, int z, long stamp) {
+        getLock(x, z).unlockWrite(stamp);
+    }
+
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    private StampedLock getLock(int x, int z) {
+        return stripes[CompressedNumbers.mix(CompressedNumbers.i2(x, z)) & mask];
+    }
+}
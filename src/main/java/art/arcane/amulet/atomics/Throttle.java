@@ -0,0 +1,102 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.atomics;
+
+import java.util.function.Supplier;
+
+/**
+ * Limits both how many operations run at once and how fast they start. Useful to throttle io or background work
+ * (like generation) without sprinkling sleeps around. Both limits can be changed at runtime.
+ */
+public class Throttle {
+    private final ResizableSemaphore concurrency;
+    private final TokenBucket rate;
+
+    /**
+     * @param concurrency the most operations running at once
+     * @param perSecond   the most operations (or weight) started per second
+     * @param burst       the most operations (or weight) started at once after being idle
+     */
+    public Throttle(int concurrency, double perSecond, int burst) {
+        this.concurrency = new ResizableSemaphore(concurrency, true);
+        this.rate = new TokenBucket(perSecond, burst);
+    }
+
+    public void run(Runnable r) throws InterruptedException {
+        run(1, r);
+    }
+
+    /**
+     * Wait for a free slot and enough tokens, then run
+     *
+     * @param weight the tokens this operation costs, such as the amount of bytes or chunks
+     * @param r      the runnable
+     */
+    public void run(int weight, Runnable r) throws InterruptedException {
+        concurrency.acquire();
+        try {
+            rate.acquire(weight);
+            r.run();
+        } finally {
+            concurrency.release();
+        }
+    }
+
+    public <T> T get(int weight, Supplier<T> r) throws InterruptedException {
+        concurrency.acquire();
+        try {
+            rate.acquire(weight);
+            return r.get();
+        } finally {
+            concurrency.release();
+        }
+    }
+
+    /**
+     * Run only if a slot and the tokens are available right now
+     *
+     * @param weight the tokens this operation costs
+     * @param r      the runnable
+     * @return true if it ran
+     */
+    public boolean tryRun(int weight, Runnable r) {
+        if (!concurrency.tryAcquire()) {
+            return false;
+        }
+
+        try {
+            if (!rate.tryAcquire(weight)) {
+                return false;
+            }
+
+            r.run();
+            return true;
+        } finally {
+            concurrency.release();
+        }
+    }
+
+    public ResizableSemaphore getConcurrency() {
+        return concurrency;
+    }
+
+    public TokenBucket getRate() {
+        return rate;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.atomics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock free token bucket rate limiter with nanosecond precision. Tokens refill at a fixed rate up to the burst size,
+ * acquiring takes any amount of tokens at once. Instead of a token count the bucket tracks the time at which it will be
+ * empty of debt (the generic cell rate algorithm), so acquiring is a single compare and set and there is no refill thread.
+ */
+public class TokenBucket {
+    private final AtomicLong debtUntil;
+    private volatile long interval;
+    private volatile int burst;
+
+    /**
+     * @param perSecond the tokens refilled per second
+     * @param burst     the most tokens the bucket holds, the largest burst allowed after being idle
+     */
+    public TokenBucket(double perSecond, int burst) {
+        setRate(perSecond);
+        setBurst(burst);
+        this.debtUntil = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Take one token if there is one
+     *
+     * @return true if the token was taken
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    /**
+     * Take tokens if there are enough, never waits
+     *
+     * @param tokens the amount of tokens
+     * @return true if the tokens were taken
+     */
+    public boolean tryAcquire(int tokens) {
+        long cost = cost(tokens);
+        long tolerance = (long) burst * interval;
+
+        while (true) {
+            long now = System.nanoTime();
+            long debt = debtUntil.get();
+            long next = Math.max(debt, now) + cost;
+
+            if (next - now > tolerance) {
+                return false;
+            }
+
+            if (debtUntil.compareAndSet(debt, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take tokens, waiting up to a timeout for them to refill
+     *
+     * @param tokens  the amount of tokens
+     * @param timeout the most time to wait
+     * @param unit    the unit of the timeout
+     * @return true if the tokens were taken
+     */
+    public boolean tryAcquire(int tokens, long timeout, TimeUnit unit) throws InterruptedException {
+        long cost = cost(tokens);
+        long tolerance = (long) burst * interval;
+        long wait;
+
+        while (true) {
+            long now = System.nanoTime();
+            long debt = debtUntil.get();
+            long next = Math.max(debt, now) + cost;
+            wait = next - tolerance - now;
+
+            if (wait > unit.toNanos(timeout)) {
+                return false;
+            }
+
+            if (debtUntil.compareAndSet(debt, next)) {
+                break;
+            }
+        }
+
+        sleep(wait);
+        return true;
+    }
+
+    /**
+     * Take one token, waiting for it to refill if needed
+     */
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    /**
+     * Take tokens, waiting for them to refill if needed. The tokens are reserved right away so
+     * callers are served in order, more tokens than the burst size just take longer.
+     *
+     * @param tokens the amount of tokens
+     */
+    public void acquire(int tokens) throws InterruptedException {
+        long cost = cost(tokens);
+        long tolerance = (long) burst * interval;
+        long now = System.nanoTime();
+        long next = debtUntil.accumulateAndGet(now, (debt, n) -> Math.max(debt, n) + cost);
+        sleep(next - tolerance - now);
+    }
+
+    /**
+     * @return the amount of tokens which could be taken right now
+     */
+    public int getAvailable() {
+        long now = System.nanoTime();
+        long owed = Math.max(debtUntil.get() - now, 0);
+        return (int) Math.max(burst - Math.ceil(owed / (double) interval), 0);
+    }
+
+    public double getRate() {
+        return 1_000_000_000D / interval;
+    }
+
+    /**
+     * Change the refill rate, tokens taken before keep the cost they had
+     *
+     * @param perSecond the tokens refilled per second
+     */
+    public void setRate(double perSecond) {
+        if (perSecond <= 0) {
+            throw new IllegalArgumentException("The rate must be greater than 0: " + perSecond);
+        }
+
+        this.interval = Math.max((long) (1_000_000_000D / perSecond), 1);
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public void setBurst(int burst) {
+        if (burst <= 0) {
+            throw new IllegalArgumentException("The burst must be at least 1: " + burst);
+        }
+
+        this.burst = burst;
+    }
+
+    private long cost(int tokens) {
+        if (tokens <= 0) {
+            throw new IllegalArgumentException("Tokens must be at least 1: " + tokens);
+        }
+
+        return tokens * interval;
+    }
+
+    private static void sleep(long nanos) throws InterruptedException {
+        long deadline = System.nanoTime() + nanos;
+
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            nanos = deadline - System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.collections;
+
+import java.util.*;
+
+/**
+ * A map whose values are unique as well as its keys, so it can be looked up in both directions. Both directions are
+ * kept up to date on every put and remove, which makes {@link #inverse()} a constant time view instead of a copy.
+ * Not thread safe, just like {@link HashMap}.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class BiMap<K, V> extends AbstractMap<K, V> {
+    private final Map<K, V> forward;
+    private final Map<V, K> backward;
+    private final BiMap<V, K> inverse;
+    private Set<Map.Entry<K, V>> entries;
+
+    public BiMap() {
+        this.forward = new HashMap<>();
+        this.backward = new HashMap<>();
+        this.inverse = new BiMap<>(backward, forward, this);
+    }
+
+    /**
+     * @param map the map to copy
+     * @throws IllegalArgumentException if the map contains a value twice
+     */
+    public BiMap(Map<? extends K, ? extends V> map) {
+        this();
+        putAll(map);
+    }
+
+    private BiMap(Map<K, V> forward, Map<V, K> backward, BiMap<V, K> inverse) {
+        this.forward = forward;
+        this.backward = backward;
+        this.inverse = inverse;
+    }
+
+    /**
+     * @return a view of this map with keys and values swapped, changes to either one show in the other
+     */
+    public BiMap<V, K> inverse() {
+        return inverse;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is already mapped to another key, see {@link #forcePut}
+     */
+    @Override
+    public V put(K key, V value) {
+        K existing = backward.get(value);
+
+        if (existing != null || backward.containsKey(value)) {
+            if (Objects.equals(existing, key)) {
+                return value;
+            }
+
+            throw new IllegalArgumentException("Value " + value + " is already mapped to " + existing);
+        }
+
+        return forcePut(key, value);
+    }
+
+    /**
+     * Put the entry, removing any other key which was mapped to the same value
+     *
+     * @return the previous value of the key
+     */
+    public V forcePut(K key, V value) {
+        boolean had = forward.containsKey(key);
+        V old = forward.get(key);
+
+        if (had && Objects.equals(old, value)) {
+            return old;
+        }
+
+        if (backward.containsKey(value)) {
+            forward.remove(backward.get(value));
+        }
+
+        forward.put(key, value);
+
+        if (had) {
+            backward.remove(old);
+        }
+
+        backward.put(value, key);
+        return old;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (!forward.containsKey(key)) {
+            return null;
+        }
+
+        V v = forward.remove(key);
+        backward.remove(v);
+        return v;
+    }
+
+    @Override
+    public V get(Object key) {
+        return forward.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return forward.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return backward.containsKey(value);
+    }
+
+    @Override
+    public int size() {
+        return forward.size();
+    }
+
+    @Override
+    public void clear() {
+        forward.clear();
+        backward.clear();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entries == null) {
+            entries = new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    Iterator<Map.Entry<K, V>> it = forward.entrySet().iterator();
+
+                    return new Iterator<>() {
+                        private Map.Entry<K, V> last;
+
+                        @Override
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<K, V> next() {
+                            last = it.next();
+                            return new Entry(last);
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (last == null) {
+                                throw new IllegalStateException();
+                            }
+
+                            it.remove();
+                            backward.remove(last.getValue());
+                            last = null;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return forward.size();
+                }
+
+                @Override
+                public void clear() {
+                    BiMap.this.clear();
+                }
+            };
+        }
+
+        return entries;
+    }
+
+    /**
+     * An entry whose setValue keeps the values unique, like {@link #put}
+     */
+    private class Entry extends SimpleEntry<K, V> {
+        private final Map.Entry<K, V> entry;
+
+        private Entry(Map.Entry<K, V> entry) {
+            super(entry);
+            this.entry = entry;
+        }
+
+        @Override
+        public V setValue(V value) {
+            V old = entry.getValue();
+
+            if (Objects.equals(old, value)) {
+                return old;
+            }
+
+            if (backward.containsKey(value)) {
+                throw new IllegalArgumentException("Value " + value + " is already mapped to " + backward.get(value));
+            }
+
+            entry.setValue(value);
+            backward.remove(old);
+            backward.put(value, entry.getKey());
+            super.setValue(value);
+            return old;
+        }
+    }
+}
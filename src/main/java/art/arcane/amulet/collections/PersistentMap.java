@@ -0,0 +1,451 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.collections;
+
+import java.util.*;
+
+/**
+ * An immutable hash map where every change returns a new map sharing all untouched structure with the old one, so
+ * plus and minus cost O(log32 n) instead of a full copy. Built as a hash array mapped trie, each level consumes 5 bits
+ * of the hash and only stores the children that exist. Keys with fully equal hashes share a collision node.
+ * <p>
+ * The mutating methods of {@link Map} throw {@link UnsupportedOperationException}, use plus and minus instead.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public final class PersistentMap<K, V> extends AbstractMap<K, V> {
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0, false, null);
+    private static final Object NOT_FOUND = new Object();
+    private final Node root;
+    private final int size;
+    private final boolean hasNull;
+    private final V nullValue;
+    private Set<Map.Entry<K, V>> entries;
+
+    private PersistentMap(Node root, int size, boolean hasNull, V nullValue) {
+        this.root = root;
+        this.size = size;
+        this.hasNull = hasNull;
+        this.nullValue = nullValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> of(Map<? extends K, ? extends V> map) {
+        if (map instanceof PersistentMap) {
+            return (PersistentMap<K, V>) map;
+        }
+
+        return PersistentMap.<K, V>empty().plus(map);
+    }
+
+    /**
+     * @return a map with the key set to the value, or this map if it already was
+     */
+    @SuppressWarnings("unchecked")
+    public PersistentMap<K, V> plus(K key, V value) {
+        if (key == null) {
+            if (hasNull && Objects.equals(nullValue, value)) {
+                return this;
+            }
+
+            return new PersistentMap<>(root, hasNull ? size : size + 1, true, value);
+        }
+
+        boolean[] added = new boolean[1];
+        Node r = (root == null ? BitmapNode.EMPTY : root).plus(0, hash(key), key, value, added);
+
+        if (r == root) {
+            return this;
+        }
+
+        return new PersistentMap<>(r, added[0] ? size + 1 : size, hasNull, nullValue);
+    }
+
+    public PersistentMap<K, V> plus(Map<? extends K, ? extends V> map) {
+        PersistentMap<K, V> m = this;
+
+        for (Map.Entry<? extends K, ? extends V> i : map.entrySet()) {
+            m = m.plus(i.getKey(), i.getValue());
+        }
+
+        return m;
+    }
+
+    /**
+     * @return a map without the key, or this map if it did not contain it
+     */
+    public PersistentMap<K, V> minus(Object key) {
+        if (key == null) {
+            return hasNull ? new PersistentMap<>(root, size - 1, false, null) : this;
+        }
+
+        if (root == null) {
+            return this;
+        }
+
+        Node r = root.minus(0, hash(key), key);
+
+        if (r == root) {
+            return this;
+        }
+
+        return new PersistentMap<>(r, size - 1, hasNull, nullValue);
+    }
+
+    public PersistentMap<K, V> minus(Collection<?> keys) {
+        PersistentMap<K, V> m = this;
+
+        for (Object i : keys) {
+            m = m.minus(i);
+        }
+
+        return m;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return nullValue;
+        }
+
+        if (root == null) {
+            return null;
+        }
+
+        Object v = root.find(0, hash(key), key);
+        return v == NOT_FOUND ? null : (V) v;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null) {
+            return hasNull;
+        }
+
+        return root != null && root.find(0, hash(key), key) != NOT_FOUND;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entries == null) {
+            entries = new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new NodeIterator<>(PersistentMap.this);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+
+        return entries;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static Object[] set(Object[] array, int i, Object o) {
+        Object[] a = array.clone();
+        a[i] = o;
+        return a;
+    }
+
+    /**
+     * A node stores pairs of key and value. A null key marks a pair whose value is a child node, real null keys are
+     * kept by the map itself.
+     */
+    private abstract static class Node {
+        protected final Object[] array;
+
+        protected Node(Object[] array) {
+            this.array = array;
+        }
+
+        abstract Node plus(int shift, int hash, Object key, Object value, boolean[] added);
+
+        /**
+         * @return the node without the key, this if it was missing, null if the node is now empty
+         */
+        abstract Node minus(int shift, int hash, Object key);
+
+        abstract Object find(int shift, int hash, Object key);
+    }
+
+    private static final class BitmapNode extends Node {
+        private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+        private final int bitmap;
+
+        private BitmapNode(int bitmap, Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        Node plus(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = index(bit) << 1;
+
+            if ((bitmap & bit) == 0) {
+                Object[] a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, i);
+                a[i] = key;
+                a[i + 1] = value;
+                System.arraycopy(array, i, a, i + 2, array.length - i);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, a);
+            }
+
+            Object k = array[i];
+            Object v = array[i + 1];
+
+            if (k == null) {
+                Node n = ((Node) v).plus(shift + 5, hash, key, value, added);
+                return n == v ? this : new BitmapNode(bitmap, set(array, i + 1, n));
+            }
+
+            if (k.equals(key)) {
+                return Objects.equals(v, value) ? this : new BitmapNode(bitmap, set(array, i + 1, value));
+            }
+
+            added[0] = true;
+            Object[] a = set(array, i, null);
+            a[i + 1] = split(shift + 5, k, v, hash, key, value);
+            return new BitmapNode(bitmap, a);
+        }
+
+        @Override
+        Node minus(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+
+            int i = index(bit) << 1;
+            Object k = array[i];
+
+            if (k == null) {
+                Node v = (Node) array[i + 1];
+                Node n = v.minus(shift + 5, hash, key);
+
+                if (n == v) {
+                    return this;
+                }
+
+                if (n != null) {
+                    return new BitmapNode(bitmap, set(array, i + 1, n));
+                }
+            } else if (!k.equals(key)) {
+                return this;
+            }
+
+            if (bitmap == bit) {
+                return null;
+            }
+
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+            return new BitmapNode(bitmap ^ bit, a);
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+
+            if ((bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+
+            int i = index(bit) << 1;
+            Object k = array[i];
+
+            if (k == null) {
+                return ((Node) array[i + 1]).find(shift + 5, hash, key);
+            }
+
+            return k.equals(key) ? array[i + 1] : NOT_FOUND;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        /**
+         * Make a node holding two keys which landed in the same slot
+         */
+        private static Node split(int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+            int h1 = hash(k1);
+
+            if (h1 == h2) {
+                return new CollisionNode(h1, new Object[]{k1, v1, k2, v2});
+            }
+
+            boolean[] added = new boolean[1];
+            return EMPTY.plus(shift, h1, k1, v1, added).plus(shift, h2, k2, v2, added);
+        }
+    }
+
+    private static final class CollisionNode extends Node {
+        private final int hash;
+
+        private CollisionNode(int hash, Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        @Override
+        Node plus(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                return new BitmapNode(1 << ((this.hash >>> shift) & 31), new Object[]{null, this})
+                        .plus(shift, hash, key, value, added);
+            }
+
+            int i = indexOf(key);
+
+            if (i >= 0) {
+                return Objects.equals(array[i + 1], value) ? this : new CollisionNode(hash, set(array, i + 1, value));
+            }
+
+            Object[] a = Arrays.copyOf(array, array.length + 2);
+            a[array.length] = key;
+            a[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, a);
+        }
+
+        @Override
+        Node minus(int shift, int hash, Object key) {
+            int i = indexOf(key);
+
+            if (i < 0) {
+                return this;
+            }
+
+            if (array.length == 2) {
+                return null;
+            }
+
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+            return new CollisionNode(hash, a);
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int i = indexOf(key);
+            return i < 0 ? NOT_FOUND : array[i + 1];
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+    }
+
+    /**
+     * Walks the trie depth first with an explicit stack, at most 7 bitmap levels and one collision level deep
+     */
+    private static final class NodeIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final Object[][] arrays = new Object[8][];
+        private final int[] positions = new int[8];
+        private int depth = -1;
+        private Map.Entry<K, V> next;
+
+        private NodeIterator(PersistentMap<K, V> map) {
+            if (map.root != null) {
+                push(map.root.array);
+            }
+
+            if (map.hasNull) {
+                next = new SimpleImmutableEntry<>(null, map.nullValue);
+            } else {
+                advance();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+
+            Map.Entry<K, V> e = next;
+            advance();
+            return e;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            while (depth >= 0) {
+                Object[] a = arrays[depth];
+                int p = positions[depth];
+
+                if (p >= a.length) {
+                    arrays[depth--] = null;
+                    continue;
+                }
+
+                positions[depth] = p + 2;
+
+                if (a[p] == null) {
+                    push(((Node) a[p + 1]).array);
+                } else {
+                    next = new SimpleImmutableEntry<>((K) a[p], (V) a[p + 1]);
+                    return;
+                }
+            }
+
+            next = null;
+        }
+
+        private void push(Object[] array) {
+            arrays[++depth] = array;
+            positions[depth] = 0;
+        }
+    }
+}
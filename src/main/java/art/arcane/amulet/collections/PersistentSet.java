@@ -0,0 +1,105 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.collections;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * An immutable hash set backed by a {@link PersistentMap}, plus and minus cost O(log32 n) and share structure with
+ * the original set. The mutating methods of {@link java.util.Set} throw {@link UnsupportedOperationException}.
+ *
+ * @param <E> the element type
+ */
+public final class PersistentSet<E> extends AbstractSet<E> {
+    private static final PersistentSet<?> EMPTY = new PersistentSet<>(PersistentMap.empty());
+    private final PersistentMap<E, Boolean> map;
+
+    private PersistentSet(PersistentMap<E, Boolean> map) {
+        this.map = map;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentSet<E> empty() {
+        return (PersistentSet<E>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentSet<E> of(Collection<? extends E> collection) {
+        if (collection instanceof PersistentSet) {
+            return (PersistentSet<E>) collection;
+        }
+
+        return PersistentSet.<E>empty().plus(collection);
+    }
+
+    public PersistentSet<E> plus(E e) {
+        return wrap(map.plus(e, Boolean.TRUE));
+    }
+
+    public PersistentSet<E> plus(Collection<? extends E> collection) {
+        PersistentMap<E, Boolean> m = map;
+
+        for (E i : collection) {
+            m = m.plus(i, Boolean.TRUE);
+        }
+
+        return wrap(m);
+    }
+
+    public PersistentSet<E> minus(Object e) {
+        return wrap(map.minus(e));
+    }
+
+    public PersistentSet<E> minus(Collection<?> collection) {
+        return wrap(map.minus(collection));
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return map.containsKey(o);
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        Iterator<java.util.Map.Entry<E, Boolean>> it = map.entrySet().iterator();
+
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return it.next().getKey();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    private PersistentSet<E> wrap(PersistentMap<E, Boolean> m) {
+        return m == map ? this : new PersistentSet<>(m);
+    }
+}
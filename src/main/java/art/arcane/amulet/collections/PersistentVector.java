@@ -0,0 +1,321 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.collections;
+
+import java.util.*;
+
+/**
+ * An immutable list where every change returns a new list sharing all untouched structure with the old one. Elements
+ * live in a trie of 32 wide arrays indexed by the bits of their index, so get and with cost O(log32 n). The last
+ * (up to) 32 elements are kept in a separate tail, which makes appending and dropping the last element effectively
+ * constant time. Removing elements by value rebuilds the list and is O(n).
+ * <p>
+ * The mutating methods of {@link List} throw {@link UnsupportedOperationException}, use plus, with and minus instead.
+ *
+ * @param <E> the element type
+ */
+public final class PersistentVector<E> extends AbstractList<E> implements RandomAccess {
+    private static final Object[] EMPTY_NODE = new Object[32];
+    private static final PersistentVector<?> EMPTY = new PersistentVector<>(0, 5, EMPTY_NODE, new Object[0]);
+    private final int size;
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentVector<E> empty() {
+        return (PersistentVector<E>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentVector<E> of(Collection<? extends E> collection) {
+        if (collection instanceof PersistentVector) {
+            return (PersistentVector<E>) collection;
+        }
+
+        return PersistentVector.<E>empty().plus(collection);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E get(int index) {
+        return (E) leaf(index)[index & 31];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a list with the element appended
+     */
+    public PersistentVector<E> plus(E e) {
+        if (size - tailOffset() < 32) {
+            Object[] t = Arrays.copyOf(tail, tail.length + 1);
+            t[tail.length] = e;
+            return new PersistentVector<>(size + 1, shift, root, t);
+        }
+
+        Object[] r;
+        int s = shift;
+
+        if ((size >>> 5) > (1 << shift)) {
+            r = new Object[32];
+            r[0] = root;
+            r[1] = path(shift, tail);
+            s += 5;
+        } else {
+            r = pushTail(shift, root, tail);
+        }
+
+        return new PersistentVector<>(size + 1, s, r, new Object[]{e});
+    }
+
+    public PersistentVector<E> plus(Collection<? extends E> collection) {
+        PersistentVector<E> v = this;
+
+        for (E i : collection) {
+            v = v.plus(i);
+        }
+
+        return v;
+    }
+
+    /**
+     * @return a list with the element at the index replaced, an index equal to the size appends
+     */
+    public PersistentVector<E> with(int index, E e) {
+        if (index == size) {
+            return plus(e);
+        }
+
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+
+        if (index >= tailOffset()) {
+            Object[] t = tail.clone();
+            t[index & 31] = e;
+            return new PersistentVector<>(size, shift, root, t);
+        }
+
+        return new PersistentVector<>(size, shift, with(shift, root, index, e), tail);
+    }
+
+    /**
+     * @return a list without its last element
+     */
+    public PersistentVector<E> dropLast() {
+        if (size == 0) {
+            throw new IllegalStateException("Can't drop from an empty vector");
+        }
+
+        if (size == 1) {
+            return empty();
+        }
+
+        if (size - tailOffset() > 1) {
+            return new PersistentVector<>(size - 1, shift, root, Arrays.copyOf(tail, tail.length - 1));
+        }
+
+        Object[] t = leaf(size - 2);
+        Object[] r = popTail(shift, root);
+        int s = shift;
+
+        if (r == null) {
+            r = EMPTY_NODE;
+        }
+
+        if (shift > 5 && r[1] == null) {
+            r = (Object[]) r[0];
+            s -= 5;
+        }
+
+        return new PersistentVector<>(size - 1, s, r, t);
+    }
+
+    /**
+     * @return a list without the first occurrence of the element, O(n)
+     */
+    public PersistentVector<E> minus(Object e) {
+        int index = indexOf(e);
+
+        if (index < 0) {
+            return this;
+        }
+
+        PersistentVector<E> v = empty();
+
+        for (int i = 0; i < size; i++) {
+            if (i != index) {
+                v = v.plus(get(i));
+            }
+        }
+
+        return v;
+    }
+
+    /**
+     * @return a list without every occurrence of every element contained in the collection, O(n)
+     */
+    public PersistentVector<E> minus(Collection<?> collection) {
+        Collection<?> c = collection instanceof Set ? collection : new HashSet<>(collection);
+        PersistentVector<E> v = empty();
+
+        for (E i : this) {
+            if (!c.contains(i)) {
+                v = v.plus(i);
+            }
+        }
+
+        return v.size == size ? this : v;
+    }
+
+    /**
+     * Remove one occurrence for every element of the list, like removing each of them in turn from an
+     * {@link ArrayList}. This mirrors list minus list, while {@link #minus(Collection)} mirrors removeAll. O(n + m)
+     *
+     * @return a list without the first occurrences of the given elements
+     */
+    public PersistentVector<E> minus(List<?> list) {
+        Map<Object, Integer> counts = new HashMap<>();
+
+        for (Object i : list) {
+            counts.merge(i, 1, Integer::sum);
+        }
+
+        PersistentVector<E> v = empty();
+
+        for (E i : this) {
+            Integer c = counts.get(i);
+
+            if (c != null && c > 0) {
+                counts.put(i, c - 1);
+            } else {
+                v = v.plus(i);
+            }
+        }
+
+        return v.size == size ? this : v;
+    }
+
+    /**
+     * @return a list of the elements in reverse order
+     */
+    public PersistentVector<E> reversed() {
+        PersistentVector<E> v = empty();
+
+        for (int i = size - 1; i >= 0; i--) {
+            v = v.plus(get(i));
+        }
+
+        return v;
+    }
+
+    private int tailOffset() {
+        return size < 32 ? 0 : ((size - 1) >>> 5) << 5;
+    }
+
+    private Object[] leaf(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+
+        if (index >= tailOffset()) {
+            return tail;
+        }
+
+        Object[] node = root;
+
+        for (int level = shift; level > 0; level -= 5) {
+            node = (Object[]) node[(index >>> level) & 31];
+        }
+
+        return node;
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Object[] tailNode) {
+        int i = ((size - 1) >>> level) & 31;
+        Object[] r = parent.clone();
+
+        if (level == 5) {
+            r[i] = tailNode;
+        } else {
+            Object[] child = (Object[]) parent[i];
+            r[i] = child != null ? pushTail(level - 5, child, tailNode) : path(level - 5, tailNode);
+        }
+
+        return r;
+    }
+
+    private Object[] popTail(int level, Object[] node) {
+        int i = ((size - 2) >>> level) & 31;
+
+        if (level > 5) {
+            Object[] child = popTail(level - 5, (Object[]) node[i]);
+
+            if (child == null && i == 0) {
+                return null;
+            }
+
+            Object[] r = node.clone();
+            r[i] = child;
+            return r;
+        }
+
+        if (i == 0) {
+            return null;
+        }
+
+        Object[] r = node.clone();
+        r[i] = null;
+        return r;
+    }
+
+    private static Object[] with(int level, Object[] node, int index, Object e) {
+        Object[] r = node.clone();
+
+        if (level == 0) {
+            r[index & 31] = e;
+        } else {
+            int i = (index >>> level) & 31;
+            r[i] = with(level - 5, (Object[]) node[i], index, e);
+        }
+
+        return r;
+    }
+
+    private static Object[] path(int level, Object[] node) {
+        if (level == 0) {
+            return node;
+        }
+
+        Object[] r = new Object[32];
+        r[0] = path(level - 5, node);
+        return r;
+    }
+}
@@ -19,173 +19,159 @@
 package art.arcane.amulet.collections;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
- * Represents a list from a queue. Iteration is fast & generally concurrent
- * if the right queue is used, however get(index) and set(index, o) is incredibly slow.
+ * A concurrent list, formerly backed by a queue. It is now a view of a {@link SegmentedList}, so appends never exclude
+ * each other, get(index) and set(index, o) are O(1) and nothing copies the whole list anymore. Iteration is weakly
+ * consistent.
  *
  * @param <T>
  */
 public class QueuedList<T> implements List<T> {
-    private final Queue<T> queue;
+    private final SegmentedList<T> list;
 
-    public QueuedList(Queue<T> queue) {
-        this.queue = queue;
+    public QueuedList() {
+        this.list = new SegmentedList<>();
     }
 
-    public QueuedList() {
-        this(new ConcurrentLinkedQueue<>());
+    /**
+     * Copies the queue's current contents into the list. The list no longer wraps the queue, so later changes to
+     * either one are not seen by the other.
+     *
+     * @param queue the queue to copy
+     */
+    public QueuedList(Queue<T> queue) {
+        this();
+        list.addAll(queue);
     }
 
     @Override
     public int size() {
-        return queue.size();
+        return list.size();
     }
 
     @Override
     public boolean isEmpty() {
-        return queue.isEmpty();
+        return list.isEmpty();
     }
 
     @Override
     public boolean contains(Object o) {
-        return queue.contains(o);
+        return list.contains(o);
     }
 
     @Override
     public Iterator<T> iterator() {
-        return queue.iterator();
+        return list.iterator();
     }
 
     @Override
     public Object[] toArray() {
-        return queue.toArray();
+        return list.toArray();
     }
 
     @Override
     public <T1> T1[] toArray(T1[] a) {
-        return queue.toArray(a);
+        return list.toArray(a);
     }
 
     @Override
     public boolean add(T t) {
-        return queue.add(t);
+        return list.add(t);
     }
 
     @Override
     public boolean remove(Object o) {
-        return queue.remove(o);
+        return list.remove(o);
     }
 
     @Override
     public boolean containsAll(Collection<?> c) {
-        return queue.containsAll(c);
+        return list.containsAll(c);
     }
 
     @Override
     public boolean addAll(Collection<? extends T> c) {
-        return queue.addAll(c);
+        return list.addAll(c);
     }
 
     @Override
     public boolean addAll(int index, Collection<? extends T> c) {
-        List<T> f = copy(ArrayList::new);
-        clear();
-
-        for (int i = 0; i < index; i++) {
-            add(pop());
-        }
-
-        addAll(c);
-        addAll(f);
-        return true;
+        return list.addAll(index, c);
     }
 
     @Override
     public boolean removeAll(Collection<?> c) {
-        return queue.removeAll(c);
+        return list.removeAll(c);
     }
 
     @Override
     public boolean retainAll(Collection<?> c) {
-        return queue.retainAll(c);
+        return list.retainAll(c);
     }
 
     @Override
     public void clear() {
-        queue.clear();
+        list.clear();
     }
 
     @Override
     public T get(int index) {
-        return (T) toArray()[index];
+        return list.get(index);
     }
 
     @Override
     public T set(int index, T element) {
-        List<T> f = copy(ArrayList::new);
-        clear();
-
-        for (int i = 0; i < index - 1; i++) {
-            add(pop());
-        }
-
-        add(element);
-        T x = f.pop();
-        addAll(f);
-        return x;
+        return list.set(index, element);
     }
 
     @Override
     public void add(int index, T element) {
-        List<T> f = copy(ArrayList::new);
-        clear();
-
-        for (int i = 0; i < index - 1; i++) {
-            add(pop());
-        }
-
-        add(element);
-        addAll(f);
+        list.add(index, element);
     }
 
     @Override
     public T remove(int index) {
-        List<T> f = copy(ArrayList::new);
-        clear();
-
-        for (int i = 0; i < index - 1; i++) {
-            add(pop());
-        }
-
-        T x = f.pop();
-        addAll(f);
-        return x;
+        return list.remove(index);
     }
 
     @Override
     public int indexOf(Object o) {
-        return copy(ArrayList::new).indexOf(o);
+        return list.indexOf(o);
     }
 
     @Override
     public int lastIndexOf(Object o) {
-        return copy(ArrayList::new).lastIndexOf(o);
+        return list.lastIndexOf(o);
     }
 
     @Override
     public ListIterator<T> listIterator() {
-        throw new UnsupportedOperationException();
+        return list.listIterator();
     }
 
     @Override
     public ListIterator<T> listIterator(int index) {
-        throw new UnsupportedOperationException();
+        return list.listIterator(index);
     }
 
     @Override
     public List<T> subList(int fromIndex, int toIndex) {
-        return copy(ArrayList::new).subList(fromIndex, toIndex);
+        return list.subList(fromIndex, toIndex);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o == this || list.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return list.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return list.toString();
     }
 }
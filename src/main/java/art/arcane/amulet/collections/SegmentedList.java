@@ -0,0 +1,482 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.collections;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Predicate;
+
+/**
+ * A concurrent list optimized for appending. Elements live in segments doubling in size (16, 32, 64...) which are never
+ * moved once allocated, so get and set are O(1) and growing never copies. Appends share a read lock, so they never
+ * exclude each other, reserve a slot with a single atomic increment and fill it, then every appender moves the size
+ * past all filled slots it finds. Readers never see holes, an append becomes visible once all appends before it are
+ * filled in. An append returns only once its own element is visible, so it may briefly wait for an earlier append
+ * which is still filling its slot.
+ * <p>
+ * Reads are optimistic and take no lock. Only structural changes in the middle of the list (insert, remove, clear)
+ * take the write lock and shift elements. Iteration is weakly consistent, it never throws
+ * {@link ConcurrentModificationException} and sees appends made while iterating.
+ *
+ * @param <T> the element type
+ */
+public class SegmentedList<T> extends AbstractList<T> implements RandomAccess {
+    private static final int FIRST_BITS = 4;
+    private static final int FIRST = 1 << FIRST_BITS;
+    private static final int MAX_SIZE = Integer.MAX_VALUE - FIRST;
+    private static final Object NULL = new Object();
+    private final AtomicReferenceArray<AtomicReferenceArray<Object>> segments = new AtomicReferenceArray<>(32 - FIRST_BITS);
+    private final AtomicInteger reserved = new AtomicInteger(0);
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final StampedLock lock = new StampedLock();
+
+    public SegmentedList() {
+
+    }
+
+    public SegmentedList(Collection<? extends T> c) {
+        addAll(c);
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    @Override
+    public boolean add(T t) {
+        long stamp = lock.readLock();
+        try {
+            int i = reserve(1);
+            put(i, t);
+            publish(i + 1);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+        Object[] a = c.toArray();
+
+        if (a.length == 0) {
+            return false;
+        }
+
+        long stamp = lock.readLock();
+        try {
+            int i = reserve(a.length);
+
+            for (int j = 0; j < a.length; j++) {
+                put(i + j, a[j]);
+            }
+
+            publish(i + a.length);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T get(int index) {
+        long stamp = lock.tryOptimisticRead();
+
+        if (stamp != 0 && index >= 0 && index < size.get()) {
+            AtomicReferenceArray<Object> s = segments.get(segment(index));
+
+            if (s != null) {
+                Object o = s.get(offset(index));
+
+                if (o != null && lock.validate(stamp)) {
+                    return (T) unwrap(o);
+                }
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            checkIndex(index, size.get());
+            return (T) at(index);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T set(int index, T element) {
+        long stamp = lock.readLock();
+        try {
+            checkIndex(index, size.get());
+            return (T) unwrap(segments.get(segment(index)).getAndSet(offset(index), wrap(element)));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void add(int index, T element) {
+        long stamp = lock.writeLock();
+        try {
+            int n = size.get();
+
+            if (index < 0 || index > n) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + n);
+            }
+
+            reserve(1);
+
+            for (int i = n; i > index; i--) {
+                put(i, at(i - 1));
+            }
+
+            put(index, element);
+            size.set(n + 1);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends T> c) {
+        Object[] a = c.toArray();
+
+        if (a.length == 0) {
+            return false;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            int n = size.get();
+
+            if (index < 0 || index > n) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + n);
+            }
+
+            reserve(a.length);
+
+            for (int i = n - 1; i >= index; i--) {
+                put(i + a.length, at(i));
+            }
+
+            for (int i = 0; i < a.length; i++) {
+                put(index + i, a[i]);
+            }
+
+            size.set(n + a.length);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T remove(int index) {
+        long stamp = lock.writeLock();
+        try {
+            int n = size.get();
+            checkIndex(index, n);
+            Object o = at(index);
+
+            for (int i = index; i < n - 1; i++) {
+                put(i, at(i + 1));
+            }
+
+            empty(n - 1);
+            size.set(n - 1);
+            reserved.set(n - 1);
+            return (T) o;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        long stamp = lock.writeLock();
+        try {
+            int n = size.get();
+
+            for (int i = 0; i < n; i++) {
+                if (Objects.equals(o, at(i))) {
+                    for (int j = i; j < n - 1; j++) {
+                        put(j, at(j + 1));
+                    }
+
+                    empty(n - 1);
+                    size.set(n - 1);
+                    reserved.set(n - 1);
+                    return true;
+                }
+            }
+
+            return false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove every matching element in a single pass, shifting each kept element at most once
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean removeIf(Predicate<? super T> filter) {
+        long stamp = lock.writeLock();
+        try {
+            int n = size.get();
+            int kept = 0;
+
+            for (int i = 0; i < n; i++) {
+                Object o = at(i);
+
+                if (!filter.test((T) o)) {
+                    if (kept != i) {
+                        put(kept, o);
+                    }
+
+                    kept++;
+                }
+            }
+
+            for (int i = kept; i < n; i++) {
+                empty(i);
+            }
+
+            size.set(kept);
+            reserved.set(kept);
+            return kept != n;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        return removeIf(c::contains);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        return removeIf((i) -> !c.contains(i));
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < segments.length(); i++) {
+                segments.set(i, null);
+            }
+
+            size.set(0);
+            reserved.set(0);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        int n = size();
+
+        for (int i = 0; i < n; i++) {
+            if (Objects.equals(o, get(i))) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        for (int i = size() - 1; i >= 0; i--) {
+            if (Objects.equals(o, get(i))) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * A weakly consistent iterator, it continues from its index even if elements before it were removed meanwhile
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<>() {
+            private int cursor = 0;
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < size.get();
+            }
+
+            @Override
+            public T next() {
+                try {
+                    T t = get(cursor);
+                    last = cursor++;
+                    return t;
+                } catch (IndexOutOfBoundsException e) {
+                    throw new NoSuchElementException();
+                }
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+
+                SegmentedList.this.remove(last);
+                cursor = last;
+                last = -1;
+            }
+        };
+    }
+
+    @Override
+    public Object[] toArray() {
+        long stamp = lock.readLock();
+        try {
+            int n = size.get();
+            Object[] a = new Object[n];
+
+            for (int i = 0; i < n; i++) {
+                a[i] = at(i);
+            }
+
+            return a;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private int reserve(int count) {
+        int i = reserved.getAndAdd(count);
+
+        if (i < 0 || i > MAX_SIZE - count) {
+            reserved.getAndAdd(-count);
+            throw new IllegalStateException("SegmentedList is full");
+        }
+
+        return i;
+    }
+
+    /**
+     * Move the size past every filled slot, until it reaches at least the given size. An appender which is still
+     * filling its slot stops the size there, so this yields until it is done and helps publishing after it.
+     */
+    private void publish(int until) {
+        while (true) {
+            int n = size.get();
+
+            while (n < reserved.get() && filled(n)) {
+                size.compareAndSet(n, n + 1);
+                n = size.get();
+            }
+
+            if (n >= until) {
+                return;
+            }
+
+            Thread.yield();
+        }
+    }
+
+    private boolean filled(int index) {
+        AtomicReferenceArray<Object> s = segments.get(segment(index));
+        return s != null && s.get(offset(index)) != null;
+    }
+
+    private Object at(int index) {
+        return unwrap(segments.get(segment(index)).get(offset(index)));
+    }
+
+    private void put(int index, Object o) {
+        slots(index).set(offset(index), wrap(o));
+    }
+
+    private void empty(int index) {
+        segments.get(segment(index)).set(offset(index), null);
+    }
+
+    /**
+     * An empty slot is null, so null elements are stored as {@link #NULL}
+     */
+    private static Object wrap(Object o) {
+        return o == null ? NULL : o;
+    }
+
+    private static Object unwrap(Object o) {
+        return o == NULL ? null : o;
+    }
+
+    private AtomicReferenceArray<Object> slots(int index) {
+        int k = segment(index);
+        AtomicReferenceArray<Object> s = segments.get(k);
+
+        if (s == null) {
+            s = new AtomicReferenceArray<>(FIRST << k);
+
+            if (!segments.compareAndSet(k, null, s)) {
+                s = segments.get(k);
+            }
+        }
+
+        return s;
+    }
+
+    private static int segment(int index) {
+        return 31 - Integer.numberOfLeadingZeros(index + FIRST) - FIRST_BITS;
+    }
+
+    private static int offset(int index) {
+        int i = index + FIRST;
+        return i - Integer.highestOneBit(i);
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.collections;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collector;
+
+/**
+ * Keeps the k greatest elements offered to it in a min heap of at most k elements, so picking the top k of n elements
+ * costs O(n log k) instead of sorting all of them. Not thread safe, parallel use keeps one per thread and merges them.
+ *
+ * @param <T> the element type
+ */
+public class TopK<T> {
+    private final int k;
+    private final Comparator<? super T> comparator;
+    private final PriorityQueue<T> heap;
+
+    /**
+     * @param k          the amount of elements to keep
+     * @param comparator the order, the greatest elements are kept
+     */
+    public TopK(int k, Comparator<? super T> comparator) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be positive, got " + k);
+        }
+
+        this.k = k;
+        this.comparator = comparator;
+        this.heap = new PriorityQueue<>(Math.max(1, Math.min(k, 1024)), comparator);
+    }
+
+    public TopK<T> offer(T t) {
+        if (heap.size() < k) {
+            heap.add(t);
+        } else if (k > 0 && comparator.compare(t, heap.peek()) > 0) {
+            heap.poll();
+            heap.add(t);
+        }
+
+        return this;
+    }
+
+    public TopK<T> merge(TopK<T> other) {
+        for (T i : other.heap) {
+            offer(i);
+        }
+
+        return this;
+    }
+
+    /**
+     * @return the kept elements, greatest first
+     */
+    public List<T> toList() {
+        List<T> l = new ArrayList<>(heap);
+        l.sort(comparator.reversed());
+        return l;
+    }
+
+    public int size() {
+        return heap.size();
+    }
+
+    /**
+     * @return a collector of the k greatest elements of a stream, greatest first
+     */
+    public static <T> Collector<T, ?, List<T>> collector(int k, Comparator<? super T> comparator) {
+        return Collector.of(() -> new TopK<T>(k, comparator), TopK::offer, TopK::merge, TopK::toList);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.concurrent;
+
+import art.arcane.amulet.metric.ExecutorMetrics;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor implementations J can dispatch work to. Each backend lazily creates one shared executor
+ * which is reused by every caller selecting it.
+ */
+public enum Backend {
+    /**
+     * An unbounded cached pool of platform threads. This is the original J behavior, every concurrent task
+     * costs a full OS thread.
+     */
+    CACHED,
+
+    /**
+     * A fixed pool of daemon platform threads, one per processor. Excess work queues up instead of spawning threads.
+     */
+    BOUNDED,
+
+    /**
+     * A work stealing fork join pool with one worker per processor. Best for short cpu bound tasks.
+     */
+    FORK_JOIN,
+
+    /**
+     * One virtual thread per task. Only available on runtimes that support virtual threads, otherwise
+     * this backend falls back to {@link #CACHED}. Best for blocking IO tasks.
+     */
+    VIRTUAL;
+
+    private static final boolean virtualSupported = probeVirtual();
+    private final ExecutorMetrics metrics = new ExecutorMetrics();
+    private volatile ExecutorService executor;
+
+    /**
+     * Get the shared executor of this backend, creating it on first use
+     *
+     * @return the executor service
+     */
+    public ExecutorService executor() {
+        ExecutorService service = executor;
+
+        if (service == null) {
+            synchronized (this) {
+                service = executor;
+
+                if (service == null) {
+                    service = create();
+                    executor = service;
+                }
+            }
+        }
+
+        return service;
+    }
+
+    /**
+     * @return the metrics of every task J dispatched to the shared executor of this backend
+     */
+    public ExecutorMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Create a new executor for this backend which is not shared with anything else
+     *
+     * @return a new executor service
+     */
+    public ExecutorService create() {
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        return switch (this) {
+            case CACHED -> new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<>());
+            case BOUNDED -> new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), daemonFactory("Amulet-Bounded"));
+            case FORK_JOIN -> new ForkJoinPool(threads);
+            case VIRTUAL -> virtualSupported ? newVirtualExecutor() : CACHED.create();
+        };
+    }
+
+    /**
+     * @return true if this backend can actually be used on this runtime without falling back
+     */
+    public boolean isSupported() {
+        return this != VIRTUAL || virtualSupported;
+    }
+
+    static ThreadFactory daemonFactory(String name) {
+        AtomicInteger id = new AtomicInteger(0);
+
+        return (r) -> {
+            Thread t = new Thread(r, name + "-" + id.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Looking the factory up is not enough, runtimes with virtual threads in preview only fail once it is called.
+     * The executor created to find out is shut down right away, it has not started any threads yet.
+     */
+    private static boolean probeVirtual() {
+        ExecutorService probe = newVirtualExecutor();
+
+        if (probe == null) {
+            return false;
+        }
+
+        probe.shutdown();
+        return true;
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces many tiny submissions into batches. Items are queued without locking and handed to the sink
+ * in lists of at most maxBatch items, either once enough items piled up or once the oldest waiting item
+ * waited for maxDelay milliseconds. Only one flush runs at a time so the sink is never called concurrently.
+ *
+ * @param <T> the item type
+ */
+public class Batcher<T> {
+    private final String name;
+    private final int maxBatch;
+    private final long maxDelay;
+    private final Consumer<List<T>> sink;
+    private final Queue<T> items = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicBoolean flushing = new AtomicBoolean(false);
+    private final AtomicBoolean armed = new AtomicBoolean(false);
+
+    /**
+     * @param name     the name of this batcher
+     * @param maxBatch the most items handed to the sink at once, reaching it flushes right away
+     * @param maxDelay the most milliseconds an item waits before being flushed
+     * @param sink     consumes each batch
+     */
+    public Batcher(String name, int maxBatch, long maxDelay, Consumer<List<T>> sink) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("A batch needs at least one item: " + maxBatch);
+        }
+
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("The batch delay cannot be negative: " + maxDelay);
+        }
+
+        this.name = name;
+        this.maxBatch = maxBatch;
+        this.maxDelay = maxDelay;
+        this.sink = sink;
+    }
+
+    /**
+     * Queue an item for the next batch
+     *
+     * @param item the item
+     */
+    public void add(T item) {
+        items.add(item);
+
+        if (size.incrementAndGet() >= maxBatch) {
+            flushAsync();
+        } else if (!armed.get() && armed.compareAndSet(false, true)) {
+            J.timer().schedule(() -> {
+                armed.set(false);
+                flushAsync();
+            }, maxDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Hand every queued item to the sink on the calling thread. If another thread is flushing already
+     * that thread will pick up the queued items instead.
+     */
+    public void flush() {
+        if (flushing.compareAndSet(false, true)) {
+            drain();
+        }
+    }
+
+    /**
+     * @return the amount of items waiting for the next batch
+     */
+    public int getPending() {
+        return size.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    private void flushAsync() {
+        if (size.get() > 0 && flushing.compareAndSet(false, true)) {
+            J.run(this::drain);
+        }
+    }
+
+    private void drain() {
+        do {
+            try {
+                List<T> batch;
+
+                while (!(batch = take()).isEmpty()) {
+                    try {
+                        sink.accept(batch);
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                flushing.set(false);
+            }
+        } while (size.get() > 0 && flushing.compareAndSet(false, true));
+    }
+
+    private List<T> take() {
+        List<T> batch = new ArrayList<>(Math.min(maxBatch, Math.max(size.get(), 1)));
+        T item;
+
+        while (batch.size() < maxBatch && (item = items.poll()) != null) {
+            batch.add(item);
+        }
+
+        size.addAndGet(-batch.size());
+        return batch;
+    }
+
+    @Override
+    public String toString() {
+        return "Batcher " + name + ": " + getPending() + " pending";
+    }
+}
@@ -18,21 +18,270 @@
 
 package art.arcane.amulet.concurrent;
 
+import art.arcane.amulet.metric.ExecutorMetrics;
+import art.arcane.amulet.range.IntegerRange;
+import art.arcane.amulet.range.LongRange;
+
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.function.*;
 
 public class J {
-    private static final ScheduledExecutorService s = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors());
-    private static final ExecutorService e = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
-            new SynchronousQueue<>());
+    private static final Map<String, Pool> pools = new ConcurrentHashMap<>();
+    private static final Map<String, Batcher<?>> batchers = new ConcurrentHashMap<>();
+    private static final SerialExecutor serial = new SerialExecutor(J::run);
+    private static volatile ExecutorService e = defaultBackend().executor();
+    private static volatile ExecutorMetrics metrics = defaultBackend().metrics();
+    private static volatile TimingWheel timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 512, (r) -> e.execute(r));
+
+    /**
+     * Select the backend every J call without an explicit backend is dispatched to
+     *
+     * @param backend the backend to use globally
+     */
+    public static void backend(Backend backend) {
+        e = backend.executor();
+        metrics = backend.metrics();
+    }
+
+    /**
+     * Select a custom executor every J call without an explicit backend is dispatched to
+     *
+     * @param executor the executor to use globally
+     */
+    public static void backend(ExecutorService executor) {
+        e = executor;
+        metrics = new ExecutorMetrics();
+    }
+
+    /**
+     * @return the executor J currently dispatches to by default
+     */
+    public static ExecutorService backend() {
+        return e;
+    }
+
+    /**
+     * @return a snapshot of the task counters, queue depth and latencies of the executor J dispatches to by default
+     */
+    public static ExecutorMetrics.Snapshot metrics() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * @return every named pool created so far
+     */
+    public static Collection<Pool> pools() {
+        return Collections.unmodifiableCollection(pools.values());
+    }
+
+    /**
+     * Get (or create) a named pool with one thread per processor and a queue of 1024 tasks.
+     * Once the queue is full the submitting thread runs the task itself.
+     *
+     * @param name the pool name
+     * @return the pool
+     */
+    public static Pool pool(String name) {
+        return pool(name, Runtime.getRuntime().availableProcessors(), 1024, RejectionPolicy.callerRuns());
+    }
+
+    /**
+     * Get (or create) a named pool. The configuration only applies if the pool does not exist yet,
+     * use {@link Pool#resize(int)} to change the thread count of an existing pool.
+     *
+     * @param name      the pool name
+     * @param threads   the amount of threads the pool uses
+     * @param queueSize the maximum amount of queued tasks
+     * @param rejection what to do when the queue is full
+     * @return the pool
+     */
+    public static Pool pool(String name, int threads, int queueSize, RejectionPolicy rejection) {
+        return pools.computeIfAbsent(name, (k) -> new Pool(k, threads, queueSize, rejection));
+    }
+
+    /**
+     * Get (or create) a named batcher which coalesces many small items into batches. Items are flushed
+     * to the sink once maxBatch items are queued or maxDelay milliseconds after the oldest one was added.
+     * The configuration only applies if the batcher does not exist yet.
+     *
+     * @param name     the batcher name
+     * @param maxBatch the most items handed to the sink at once
+     * @param maxDelay the most milliseconds an item waits before being flushed
+     * @param sink     consumes each batch, never called concurrently
+     * @return the batcher
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Batcher<T> batcher(String name, int maxBatch, long maxDelay, Consumer<List<T>> sink) {
+        return (Batcher<T>) batchers.computeIfAbsent(name, (k) -> new Batcher<>(k, maxBatch, maxDelay, sink));
+    }
+
+    public static CompletableFuture<Void> run(Runnable r) {
+        return TaskFuture.submit(e, metrics, r);
+    }
+
+    public static CompletableFuture<Void> run(Backend backend, Runnable r) {
+        return TaskFuture.submit(backend.executor(), backend.metrics(), r);
+    }
 
-    public static Future<?> run(Runnable r) {
-        return e.submit(r);
+    /**
+     * Run a task after every task submitted earlier with the same key, one at a time. Tasks of different
+     * keys run in parallel, tasks waiting for a busy key are queued instead of blocking a thread.
+     *
+     * @param key the key such as {@link art.arcane.amulet.data.CompressedNumbers#i2(int, int)} of a chunk
+     * @param r   the task
+     * @return the future completing once the task ran
+     */
+    public static CompletableFuture<Void> serial(long key, Runnable r) {
+        return serial.run(key, r);
     }
 
-    @SuppressWarnings("Convert2MethodRef")
-    public static Future<?> runAll(Runnable... r) {
-        return J.run(() -> Arrays.stream(r).map(J::run).forEach((i) -> i.force()));
+    /**
+     * Run a task after every task submitted earlier for the same coordinates, one at a time
+     *
+     * @param x the x coordinate
+     * @param z the z coordinate
+     * @param r the task
+     * @return the future completing once the task ran
+     */
+    public static CompletableFuture<Void> serial(int x, int z, Runnable r) {
+        return serial.run(x, z, r);
+    }
+
+    /**
+     * Run all of the runnables concurrently. The returned future completes once the last one finishes
+     * without blocking any thread while waiting (exceptionally if any of them failed).
+     *
+     * @param r the runnables
+     * @return the future completing after all runnables have finished
+     */
+    public static CompletableFuture<Void> runAll(Runnable... r) {
+        return CompletableFuture.allOf(Arrays.stream(r).map(J::run).toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Fork tasks into a scope and wait for all of them. If any task fails the remaining ones are interrupted
+     * and the failure is thrown once they have stopped.
+     *
+     * @param forks forks the tasks into the scope
+     * @throws ExecutionException   wrapping the first failure of any task
+     * @throws InterruptedException if interrupted while waiting (the tasks are interrupted too)
+     */
+    public static void scope(Consumer<TaskScope<Object>> forks) throws ExecutionException, InterruptedException {
+        try (TaskScope<Object> scope = new TaskScope<>(TaskScope.Policy.SHUTDOWN_ON_FAILURE)) {
+            forks.accept(scope);
+            scope.join().throwIfFailed();
+        }
+    }
+
+    /**
+     * Fork tasks into a scope and wait for all of them up to a timeout. If any task fails or the timeout
+     * passes the remaining ones are interrupted.
+     *
+     * @param msTimeout the maximum time to wait for all tasks
+     * @param forks     forks the tasks into the scope
+     * @throws ExecutionException   wrapping the first failure of any task
+     * @throws InterruptedException if interrupted while waiting (the tasks are interrupted too)
+     * @throws TimeoutException     if the tasks did not finish in time
+     */
+    public static void scope(long msTimeout, Consumer<TaskScope<Object>> forks) throws ExecutionException, InterruptedException, TimeoutException {
+        try (TaskScope<Object> scope = new TaskScope<>(TaskScope.Policy.SHUTDOWN_ON_FAILURE)) {
+            forks.accept(scope);
+            scope.joinUntil(System.currentTimeMillis() + msTimeout).throwIfFailed();
+        }
+    }
+
+    /**
+     * Fork tasks into a scope and return the result of whichever succeeds first, interrupting the rest
+     *
+     * @param forks forks the tasks into the scope
+     * @return the first successful result
+     * @throws ExecutionException   if every task failed, wrapping the first failure
+     * @throws InterruptedException if interrupted while waiting (the tasks are interrupted too)
+     */
+    public static <T> T first(Consumer<TaskScope<T>> forks) throws ExecutionException, InterruptedException {
+        try (TaskScope<T> scope = new TaskScope<>(TaskScope.Policy.SHUTDOWN_ON_SUCCESS)) {
+            forks.accept(scope);
+            return scope.join().result();
+        }
+    }
+
+    /**
+     * Fork tasks into a scope and return the result of whichever succeeds first within the timeout, interrupting the rest
+     *
+     * @param msTimeout the maximum time to wait for a result
+     * @param forks     forks the tasks into the scope
+     * @return the first successful result
+     * @throws ExecutionException   if every task failed, wrapping the first failure
+     * @throws InterruptedException if interrupted while waiting (the tasks are interrupted too)
+     * @throws TimeoutException     if no task succeeded in time
+     */
+    public static <T> T first(long msTimeout, Consumer<TaskScope<T>> forks) throws ExecutionException, InterruptedException, TimeoutException {
+        try (TaskScope<T> scope = new TaskScope<>(TaskScope.Policy.SHUTDOWN_ON_SUCCESS)) {
+            forks.accept(scope);
+            return scope.joinUntil(System.currentTimeMillis() + msTimeout).result();
+        }
+    }
+
+    /**
+     * Run the action for every value in the range across all cores. The range is split recursively
+     * on the {@link Backend#FORK_JOIN} pool, respecting its step and open or closed ends.
+     * Returns once every value has been processed.
+     *
+     * @param range  the range of values
+     * @param action the action to run for each value
+     */
+    public static void parallelFor(IntegerRange range, IntConsumer action) {
+        ParallelRange.of(range).forEach(forkJoin(), (i) -> action.accept((int) i));
+    }
+
+    /**
+     * Run the action for every value in the range across all cores. The range is split recursively
+     * on the {@link Backend#FORK_JOIN} pool, respecting its step and open or closed ends.
+     * Returns once every value has been processed.
+     *
+     * @param range  the range of values
+     * @param action the action to run for each value
+     */
+    public static void parallelFor(LongRange range, LongConsumer action) {
+        ParallelRange.of(range).forEach(forkJoin(), action);
+    }
+
+    /**
+     * Map every value in the range and reduce the results across all cores
+     *
+     * @param range    the range of values
+     * @param identity the identity of the reducer (returned for empty ranges)
+     * @param mapper   maps each value to a result
+     * @param reducer  an associative function combining two results
+     * @return the reduced result
+     */
+    public static <T> T parallelReduce(IntegerRange range, T identity, IntFunction<T> mapper, BinaryOperator<T> reducer) {
+        return ParallelRange.of(range).reduce(forkJoin(), identity, (i) -> mapper.apply((int) i), reducer);
+    }
+
+    /**
+     * Map every value in the range and reduce the results across all cores
+     *
+     * @param range    the range of values
+     * @param identity the identity of the reducer (returned for empty ranges)
+     * @param mapper   maps each value to a result
+     * @param reducer  an associative function combining two results
+     * @return the reduced result
+     */
+    public static <T> T parallelReduce(LongRange range, T identity, LongFunction<T> mapper, BinaryOperator<T> reducer) {
+        return ParallelRange.of(range).reduce(forkJoin(), identity, mapper, reducer);
+    }
+
+    /**
+     * @return the shared fork join pool used for parallel work
+     */
+    public static ForkJoinPool forkJoin() {
+        return (ForkJoinPool) Backend.FORK_JOIN.executor();
     }
 
     public static <T> T attempt(Callable<T> c) {
@@ -53,8 +302,25 @@ public class J {
         return ifFailed;
     }
 
+    /**
+     * Replace the timing wheel delayed tasks (runIn, getIn...) are scheduled on, for example to change the tick resolution.
+     * Tasks already scheduled on the previous wheel still run.
+     *
+     * @param wheel the new timing wheel
+     */
+    public static void timer(TimingWheel wheel) {
+        timer = wheel;
+    }
+
+    /**
+     * @return the timing wheel delayed tasks are scheduled on (1ms ticks by default)
+     */
+    public static TimingWheel timer() {
+        return timer;
+    }
+
     public static ScheduledFuture<?> runIn(long msDelay, Runnable r) {
-        return s.schedule(r, msDelay, TimeUnit.MILLISECONDS);
+        return timer.schedule(r, msDelay, TimeUnit.MILLISECONDS);
     }
 
     public static ScheduledFuture<?> runAfter(long time, Runnable r) {
@@ -62,14 +328,26 @@ public class J {
     }
 
     public static <T> ScheduledFuture<T> getIn(long msDelay, Callable<T> r) {
-        return s.schedule(r, msDelay, TimeUnit.MILLISECONDS);
+        return timer.schedule(r, msDelay, TimeUnit.MILLISECONDS);
     }
 
     public static <T> ScheduledFuture<T> getAfter(long time, Callable<T> r) {
         return getIn(Math.max(time - Math.ms(), 0), r);
     }
 
-    public static <T> Future<T> get(Callable<T> r) {
-        return e.submit(r);
+    public static <T> CompletableFuture<T> get(Callable<T> r) {
+        return TaskFuture.submit(e, metrics, r);
+    }
+
+    public static <T> CompletableFuture<T> get(Backend backend, Callable<T> r) {
+        return TaskFuture.submit(backend.executor(), backend.metrics(), r);
+    }
+
+    private static Backend defaultBackend() {
+        try {
+            return Backend.valueOf(System.getProperty("amulet.backend", Backend.CACHED.name()).toUpperCase());
+        } catch (IllegalArgumentException ignored) {
+            return Backend.CACHED;
+        }
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.concurrent;
+
+import art.arcane.amulet.range.IntegerRange;
+import art.arcane.amulet.range.LongRange;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+
+/**
+ * Splits a stepped range into step indexes so it can be divided recursively on a fork join pool.
+ * Element i of the range is {@code start + i * step}, reversed ranges start at their right endpoint
+ * with a negative step (just like their iterator) so reductions still combine in iteration order.
+ */
+final class ParallelRange {
+    private static final int SURPLUS_LIMIT = 3;
+    private final long start;
+    private final long step;
+    private final long count;
+
+    private ParallelRange(long left, long right, long step, boolean leftClosed, boolean rightClosed, boolean reversed) {
+        if (reversed) {
+            long first = rightClosed ? right : right - step;
+            long n = first < left ? 0 : ((first - left) / step) + 1;
+
+            if (n > 0 && !leftClosed && first - ((n - 1) * step) == left) {
+                n--;
+            }
+
+            this.start = first;
+            this.step = -step;
+            this.count = n;
+        } else {
+            long first = leftClosed ? left : left + step;
+            long n = first > right ? 0 : ((right - first) / step) + 1;
+
+            if (n > 0 && !rightClosed && first + ((n - 1) * step) == right) {
+                n--;
+            }
+
+            this.start = first;
+            this.step = step;
+            this.count = n;
+        }
+    }
+
+    static ParallelRange of(IntegerRange range) {
+        return new ParallelRange(range.getLeftEndpoint(), range.getRightEndpoint(), range.getStep(),
+                range.isLeftClosed(), range.isRightClosed(), range.isReversed());
+    }
+
+    static ParallelRange of(LongRange range) {
+        return new ParallelRange(range.getLeftEndpoint(), range.getRightEndpoint(), range.getStep(),
+                range.isLeftClosed(), range.isRightClosed(), range.isReversed());
+    }
+
+    void forEach(ForkJoinPool pool, LongConsumer action) {
+        if (count > 0) {
+            pool.invoke(new ForEach(0, count, grain(pool), action));
+        }
+    }
+
+    <T> T reduce(ForkJoinPool pool, T identity, LongFunction<T> mapper, BinaryOperator<T> reducer) {
+        return count > 0 ? pool.invoke(new Reduce<>(0, count, grain(pool), identity, mapper, reducer)) : identity;
+    }
+
+    private long grain(ForkJoinPool pool) {
+        return Math.max(1, count / (pool.getParallelism() * 8L));
+    }
+
+    private static boolean shouldSplit(long size, long grain) {
+        return size > grain && RecursiveAction.getSurplusQueuedTaskCount() <= SURPLUS_LIMIT;
+    }
+
+    private final class ForEach extends RecursiveAction {
+        private final long from;
+        private final long to;
+        private final long grain;
+        private final LongConsumer action;
+        private ForEach next;
+
+        private ForEach(long from, long to, long grain, LongConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            long lo = from;
+            long hi = to;
+            ForEach pending = null;
+
+            while (shouldSplit(hi - lo, grain)) {
+                long mid = (lo + hi) >>> 1;
+                ForEach right = new ForEach(mid, hi, grain, action);
+                right.next = pending;
+                pending = right;
+                right.fork();
+                hi = mid;
+            }
+
+            for (long i = lo; i < hi; i++) {
+                action.accept(start + (i * step));
+            }
+
+            while (pending != null) {
+                if (pending.tryUnfork()) {
+                    pending.compute();
+                } else {
+                    pending.join();
+                }
+
+                pending = pending.next;
+            }
+        }
+    }
+
+    private final class Reduce<T> extends RecursiveTask<T> {
+        private final long from;
+        private final long to;
+        private final long grain;
+        private final T identity;
+        private final LongFunction<T> mapper;
+        private final BinaryOperator<T> reducer;
+
+        private Reduce(long from, long to, long grain, T identity, LongFunction<T> mapper, BinaryOperator<T> reducer) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.identity = identity;
+            this.mapper = mapper;
+            this.reducer = reducer;
+        }
+
+        @Override
+        protected T compute() {
+            if (shouldSplit(to - from, grain)) {
+                long mid = (from + to) >>> 1;
+                Reduce<T> left = new Reduce<>(from, mid, grain, identity, mapper, reducer);
+                left.fork();
+                T right = new Reduce<>(mid, to, grain, identity, mapper, reducer).compute();
+                return reducer.apply(left.join(), right);
+            }
+
+            T t = identity;
+
+            for (long i = from; i < to; i++) {
+                t = reducer.apply(t, mapper.apply(start + (i * step)));
+            }
+
+            return t;
+        }
+    }
+}
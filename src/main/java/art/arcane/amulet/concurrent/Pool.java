@@ -0,0 +1,127 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.concurrent;
+
+import art.arcane.amulet.metric.ExecutorMetrics;
+
+import java.util.concurrent.*;
+
+/**
+ * A named bulkhead. Every pool has its own threads and its own bounded queue so a saturated
+ * pool only slows down the callers submitting to it (depending on the {@link RejectionPolicy}).
+ */
+public class Pool {
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final ExecutorMetrics metrics = new ExecutorMetrics();
+
+    public Pool(String name, int threads, int queueSize, RejectionPolicy rejection) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("A pool needs at least one thread: " + threads);
+        }
+
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("A pool queue needs at least one slot: " + queueSize);
+        }
+
+        this.name = name;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), Backend.daemonFactory("Amulet-" + name), rejection);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public CompletableFuture<Void> run(Runnable r) {
+        return TaskFuture.submit(executor, metrics, r);
+    }
+
+    public <T> CompletableFuture<T> get(Callable<T> r) {
+        return TaskFuture.submit(executor, metrics, r);
+    }
+
+    /**
+     * @return a snapshot of the task counters, queue depth and latencies of this pool
+     */
+    public ExecutorMetrics.Snapshot metrics() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * @return the amount of threads currently alive in this pool
+     */
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    /**
+     * Change the amount of threads this pool may use
+     *
+     * @param threads the new thread count
+     */
+    public void resize(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("A pool needs at least one thread: " + threads);
+        }
+
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return the amount of tasks waiting in the queue
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the amount of free slots left in the queue before the rejection policy kicks in
+     */
+    public int getQueueRemaining() {
+        return executor.getQueue().remainingCapacity();
+    }
+
+    public ExecutorService executor() {
+        return executor;
+    }
+
+    /**
+     * Stop accepting work. Already queued work still runs.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "Pool " + name + ": " + metrics.snapshot();
+    }
+}
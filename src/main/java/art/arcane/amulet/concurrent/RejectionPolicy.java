@@ -0,0 +1,94 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.concurrent;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a {@link Pool} does with work submitted while its queue is full
+ */
+@FunctionalInterface
+public interface RejectionPolicy extends RejectedExecutionHandler {
+    /**
+     * Run the task on the submitting thread, slowing the producer down to the speed of the pool
+     */
+    static RejectionPolicy callerRuns() {
+        return (r, e) -> {
+            if (!e.isShutdown()) {
+                r.run();
+            }
+        };
+    }
+
+    /**
+     * Block the submitting thread until the queue has room, throwing a {@link RejectedExecutionException}
+     * if no room frees up within the timeout
+     *
+     * @param msTimeout the maximum time to wait for queue space
+     */
+    static RejectionPolicy block(long msTimeout) {
+        return (r, e) -> {
+            if (e.isShutdown()) {
+                throw new RejectedExecutionException("Pool is shut down");
+            }
+
+            try {
+                if (!e.getQueue().offer(r, msTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new RejectedExecutionException("Pool queue still full after " + msTimeout + "ms");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(ex);
+            }
+        };
+    }
+
+    /**
+     * Drop (and cancel) the oldest queued task to make room for the new one
+     */
+    static RejectionPolicy dropOldest() {
+        return (r, e) -> {
+            if (e.isShutdown()) {
+                return;
+            }
+
+            Runnable dropped = e.getQueue().poll();
+
+            if (dropped instanceof TaskFuture<?> t) {
+                t.drop();
+            } else if (dropped instanceof Future<?> f) {
+                f.cancel(false);
+            }
+
+            e.execute(r);
+        };
+    }
+
+    /**
+     * Throw a {@link RejectedExecutionException} back at the submitting thread
+     */
+    static RejectionPolicy abort() {
+        return (r, e) -> {
+            throw new RejectedExecutionException("Pool queue is full");
+        };
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.concurrent;
+
+import art.arcane.amulet.data.CompressedNumbers;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time and in submission order per key, while tasks of different keys run in parallel.
+ * Instead of parking a thread on a lock, tasks for a busy key are queued behind it and run by whichever thread
+ * is already draining that key. Keys with nothing queued take no memory.
+ */
+public class SerialExecutor {
+    private static final int DRAIN_BATCH = 64;
+    private final Map<Long, Lane> lanes = new ConcurrentHashMap<>();
+    private final Executor executor;
+
+    /**
+     * @param executor the executor the per key queues are drained on
+     */
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Run a task after every task submitted earlier with the same coordinate key
+     *
+     * @param x the x coordinate
+     * @param z the z coordinate
+     * @param r the task
+     * @return the future completing once the task ran
+     */
+    public CompletableFuture<Void> run(int x, int z, Runnable r) {
+        return run(CompressedNumbers.i2(x, z), r);
+    }
+
+    /**
+     * Run a task after every task submitted earlier with the same key
+     *
+     * @param key the key
+     * @param r   the task
+     * @return the future completing once the task ran
+     */
+    public CompletableFuture<Void> run(long key, Runnable r) {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                r.run();
+                f.complete(null);
+            } catch (Throwable e) {
+                f.completeExceptionally(e);
+            }
+        };
+
+        Lane[] created = new Lane[1];
+        lanes.compute(key, (k, lane) -> {
+            if (lane == null) {
+                lane = new Lane();
+                created[0] = lane;
+            }
+
+            lane.tasks.add(task);
+            return lane;
+        });
+
+        if (created[0] != null) {
+            Lane lane = created[0];
+            executor.execute(() -> drain(key, lane));
+        }
+
+        return f;
+    }
+
+    /**
+     * @return the amount of keys with queued or running tasks
+     */
+    public int getActiveKeys() {
+        return lanes.size();
+    }
+
+    private void drain(long key, Lane lane) {
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            Runnable r = lane.tasks.poll();
+
+            if (r == null) {
+                if (lanes.computeIfPresent(key, (k, l) -> l.tasks.isEmpty() ? null : l) == null) {
+                    return;
+                }
+
+                continue;
+            }
+
+            r.run();
+        }
+
+        // Give other keys a turn on this thread, the lane is still registered so nothing can start it twice
+        executor.execute(() -> drain(key, lane));
+    }
+
+    private static class Lane {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    }
+}
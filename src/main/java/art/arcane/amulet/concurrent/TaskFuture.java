@@ -0,0 +1,122 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.concurrent;
+
+import art.arcane.amulet.metric.ExecutorMetrics;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A completable future which is also the task producing its value. Unlike futures from
+ * {@link CompletableFuture#supplyAsync}, cancelling with mayInterruptIfRunning interrupts the running task
+ * just like {@link java.util.concurrent.FutureTask} does, without leaking the interrupt into the next task of the pool thread.
+ * Every task reports its queue wait and run time to the metrics of the executor it was submitted to.
+ *
+ * @param <T> the result type
+ */
+final class TaskFuture<T> extends CompletableFuture<T> implements Runnable {
+    private final Callable<T> task;
+    private final ExecutorMetrics metrics;
+    private final AtomicReference<Thread> runner = new AtomicReference<>();
+    private long submittedAt;
+
+    private TaskFuture(Callable<T> task, ExecutorMetrics metrics) {
+        this.task = task;
+        this.metrics = metrics;
+    }
+
+    static <T> TaskFuture<T> submit(Executor executor, ExecutorMetrics metrics, Callable<T> task) {
+        TaskFuture<T> f = new TaskFuture<>(task, metrics);
+        f.submittedAt = metrics.submitted();
+
+        try {
+            executor.execute(f);
+        } catch (RejectedExecutionException e) {
+            metrics.rejected();
+            throw e;
+        }
+
+        return f;
+    }
+
+    static TaskFuture<Void> submit(Executor executor, ExecutorMetrics metrics, Runnable task) {
+        return submit(executor, metrics, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Called when this task was removed from the executor queue and will never run
+     */
+    void drop() {
+        cancel(false);
+        metrics.rejected();
+    }
+
+    @Override
+    public void run() {
+        if (isDone() || !runner.compareAndSet(null, Thread.currentThread())) {
+            metrics.rejected();
+            return;
+        }
+
+        long startedAt = metrics.started(submittedAt);
+        boolean success = false;
+
+        try {
+            if (!isDone()) {
+                complete(task.call());
+                success = true;
+            }
+        } catch (Throwable e) {
+            completeExceptionally(e);
+        } finally {
+            metrics.finished(startedAt, success);
+
+            if (runner.getAndSet(null) == null) {
+                synchronized (runner) {
+                    //noinspection ResultOfMethodCallIgnored
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+        if (cancelled && mayInterruptIfRunning) {
+            synchronized (runner) {
+                Thread t = runner.getAndSet(null);
+
+                if (t != null) {
+                    t.interrupt();
+                }
+            }
+        }
+
+        return cancelled;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A structured fan out. Tasks are forked into the scope, then the owner joins them. Depending on the policy
+ * the scope shuts down as soon as one task fails or one task succeeds, interrupting every task still running
+ * so they stop burning cpu. Forking into a shut down scope does nothing.
+ *
+ * @param <T> the result type of the forked tasks
+ */
+public class TaskScope<T> implements AutoCloseable {
+    private final Policy policy;
+    private final Backend backend;
+    private final Queue<Child> children = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicReference<T> result = new AtomicReference<>();
+    private final AtomicBoolean succeeded = new AtomicBoolean(false);
+    private volatile boolean shutdown = false;
+
+    /**
+     * Create a scope forking onto J's default backend
+     *
+     * @param policy when to shut the scope down
+     */
+    public TaskScope(Policy policy) {
+        this(policy, null);
+    }
+
+    /**
+     * Create a scope forking onto a specific backend
+     *
+     * @param policy  when to shut the scope down
+     * @param backend the backend to fork onto, or null for J's default
+     */
+    public TaskScope(Policy policy, Backend backend) {
+        this.policy = policy;
+        this.backend = backend;
+    }
+
+    /**
+     * Start a task in this scope
+     *
+     * @param task the task
+     * @return the future of the task, cancelled if the scope is already shut down
+     */
+    public <R extends T> Future<R> fork(Callable<R> task) {
+        if (shutdown) {
+            CompletableFuture<R> f = new CompletableFuture<>();
+            f.cancel(false);
+            return f;
+        }
+
+        Child child = new Child();
+        Callable<R> run = () -> {
+            if (!child.started.compareAndSet(false, true)) {
+                throw new CancellationException();
+            }
+
+            try {
+                return task.call();
+            } finally {
+                child.stopped.countDown();
+            }
+        };
+        CompletableFuture<R> f = backend == null ? J.get(run) : J.get(backend, run);
+        child.future = f;
+        children.add(child);
+        f.whenComplete(this::completed);
+
+        if (shutdown) {
+            f.cancel(true);
+        }
+
+        return f;
+    }
+
+    /**
+     * Start a task in this scope
+     *
+     * @param task the task
+     * @return the future of the task, cancelled if the scope is already shut down
+     */
+    public Future<?> fork(Runnable task) {
+        return fork(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Wait for every forked task to finish (or be cancelled by a shutdown). Cancelled tasks which were already
+     * running are waited for until they actually stopped. If the waiting thread is interrupted the scope shuts
+     * down and the interruption is rethrown.
+     *
+     * @return this scope
+     * @throws InterruptedException if the owner was interrupted while waiting
+     */
+    public TaskScope<T> join() throws InterruptedException {
+        try {
+            return joinUntil(Long.MAX_VALUE);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Wait for every forked task to finish (or be cancelled by a shutdown and stop running) until a deadline.
+     * If the deadline passes the scope shuts down (interrupting the remaining tasks).
+     *
+     * @param deadlineMs the deadline in epoch milliseconds
+     * @return this scope
+     * @throws InterruptedException if the owner was interrupted while waiting
+     * @throws TimeoutException     if the deadline passed before all tasks finished
+     */
+    public TaskScope<T> joinUntil(long deadlineMs) throws InterruptedException, TimeoutException {
+        try {
+            for (Child i : children) {
+                if (deadlineMs == Long.MAX_VALUE) {
+                    i.future.handle((v, e) -> null).get();
+                } else {
+                    i.future.handle((v, e) -> null).get(remaining(deadlineMs), TimeUnit.MILLISECONDS);
+                }
+
+                // A cancelled future completes at once, the task itself may still be running until it sees the interrupt
+                if (i.started.compareAndSet(false, true)) {
+                    i.stopped.countDown();
+                } else if (deadlineMs == Long.MAX_VALUE) {
+                    i.stopped.await();
+                } else if (!i.stopped.await(remaining(deadlineMs), TimeUnit.MILLISECONDS)) {
+                    throw new TimeoutException();
+                }
+            }
+        } catch (InterruptedException | TimeoutException e) {
+            shutdown();
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return this;
+    }
+
+    /**
+     * Cancel and interrupt every task still running and refuse any further forks
+     */
+    public void shutdown() {
+        shutdown = true;
+
+        for (Child i : children) {
+            i.future.cancel(true);
+        }
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Throw the first failure of any task in this scope
+     *
+     * @throws ExecutionException wrapping the first failure
+     */
+    public void throwIfFailed() throws ExecutionException {
+        Throwable e = failure.get();
+
+        if (e != null) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    /**
+     * Get the result of the first task which succeeded
+     *
+     * @return the result
+     * @throws ExecutionException if no task succeeded, wrapping the first failure if there was one
+     */
+    public T result() throws ExecutionException {
+        if (succeeded.get()) {
+            return result.get();
+        }
+
+        Throwable e = failure.get();
+        throw e != null ? new ExecutionException(e) : new ExecutionException("No task in the scope succeeded", null);
+    }
+
+    /**
+     * Shuts down the scope
+     */
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    private void completed(T value, Throwable e) {
+        if (e == null) {
+            if (policy == Policy.SHUTDOWN_ON_SUCCESS && succeeded.compareAndSet(false, true)) {
+                result.set(value);
+                shutdown();
+            }
+
+            return;
+        }
+
+        if (e instanceof CancellationException || e.getCause() instanceof CancellationException) {
+            return;
+        }
+
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+        if (failure.compareAndSet(null, cause) && policy == Policy.SHUTDOWN_ON_FAILURE) {
+            shutdown();
+        }
+    }
+
+    private static long remaining(long deadlineMs) {
+        return Math.max(deadlineMs - System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * A forked task, started is claimed either by the task when it begins to run or by a join which found it
+     * cancelled before it ran, so a task never starts once a join stopped waiting for it
+     */
+    private static class Child {
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        private volatile CompletableFuture<?> future;
+    }
+
+    public enum Policy {
+        /**
+         * Shut down once any task fails, the scope is only successful if every task succeeded
+         */
+        SHUTDOWN_ON_FAILURE,
+
+        /**
+         * Shut down once any task succeeds, the scope result is the first successful result
+         */
+        SHUTDOWN_ON_SUCCESS
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.concurrent;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives registered tasks at a fixed rate of ticks per second on its own thread. Ticks are scheduled against
+ * absolute deadlines so the rate does not drift, if ticks run late the {@link LagPolicy} decides whether missed ticks
+ * are run back to back or skipped.
+ * <p>
+ * Every task gets a nanosecond budget per tick. Work deferred into a task is drained each tick only until its budget
+ * is spent, the rest waits for the next tick so a burst of work never stretches a tick.
+ */
+public class TickLoop {
+    private static final int SAMPLES = 20;
+    private final String name;
+    private final long intervalNanos;
+    private final double targetTps;
+    private final LagPolicy lag;
+    private final List<Task> tasks = new CopyOnWriteArrayList<>();
+    private final long[] samples = new long[SAMPLES];
+    private volatile Thread thread;
+    private volatile boolean running = false;
+    private volatile long tick = 0;
+    private volatile long skipped = 0;
+    private volatile double tps;
+
+    /**
+     * Create a tick loop running at 20 ticks per second which catches up on lag
+     *
+     * @param name the name of the loop thread
+     */
+    public TickLoop(String name) {
+        this(name, 20, LagPolicy.CATCH_UP);
+    }
+
+    /**
+     * Create a tick loop
+     *
+     * @param name      the name of the loop thread
+     * @param targetTps the ticks per second to run at
+     * @param lag       what to do with ticks missed because previous ticks ran late
+     */
+    public TickLoop(String name, double targetTps, LagPolicy lag) {
+        if (targetTps <= 0 || targetTps > 1_000_000) {
+            throw new IllegalArgumentException("The target tps must be between 0 and 1,000,000: " + targetTps);
+        }
+
+        this.name = name;
+        this.targetTps = targetTps;
+        this.intervalNanos = (long) (1_000_000_000D / targetTps);
+        this.lag = lag;
+        this.tps = targetTps;
+    }
+
+    /**
+     * Run a task every tick
+     *
+     * @param budgetNs the nanoseconds the task (and its deferred work) may use per tick
+     * @param task     the task
+     * @return the registered task, use it to defer work or to unregister it
+     */
+    public Task register(long budgetNs, TickTask task) {
+        return register(1, budgetNs, task);
+    }
+
+    /**
+     * Run a task every few ticks
+     *
+     * @param interval run the task every this many ticks
+     * @param budgetNs the nanoseconds the task (and its deferred work) may use per tick
+     * @param task     the task, or null to only drain deferred work
+     * @return the registered task, use it to defer work or to unregister it
+     */
+    public Task register(int interval, long budgetNs, TickTask task) {
+        if (budgetNs <= 0) {
+            throw new IllegalArgumentException("The tick budget must be greater than 0: " + budgetNs);
+        }
+
+        Task t = new Task(Math.max(interval, 1), budgetNs, task);
+        tasks.add(t);
+        return t;
+    }
+
+    public synchronized TickLoop start() {
+        if (!running) {
+            running = true;
+            thread = new Thread(this::loop, "Amulet-Tick-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        return this;
+    }
+
+    /**
+     * Stop ticking after the current tick and wait for the loop thread to exit, unless called from a tick itself.
+     * Registered tasks and deferred work are kept for the next start.
+     */
+    public synchronized void stop() {
+        running = false;
+        Thread t = thread;
+        thread = null;
+
+        if (t != null) {
+            LockSupport.unpark(t);
+
+            if (t != Thread.currentThread()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the ticks per second measured over the last 20 ticks
+     */
+    public double tps() {
+        return tps;
+    }
+
+    public double getTargetTps() {
+        return targetTps;
+    }
+
+    /**
+     * @return the amount of ticks which have run so far
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * @return the amount of ticks dropped because the loop lagged behind
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    /**
+     * @param tickInterval the interval in ticks
+     * @return true if the current tick is a multiple of the interval
+     */
+    public boolean interval(int tickInterval) {
+        return tick % (tickInterval <= 0 ? 1 : tickInterval) == 0;
+    }
+
+    private void loop() {
+        long next = System.nanoTime();
+        long maxLag = Math.max((long) targetTps, 1) * intervalNanos;
+
+        // A loop only runs while it owns the loop, so a quick stop and start never leaves two loops ticking
+        while (running && thread == Thread.currentThread()) {
+            long now = System.nanoTime();
+
+            if (now < next) {
+                LockSupport.parkNanos(this, next - now);
+                continue;
+            }
+
+            long behind = now - next;
+
+            if (behind >= intervalNanos && (lag == LagPolicy.SKIP || behind > maxLag)) {
+                long missed = behind / intervalNanos;
+                skipped += missed;
+                next += missed * intervalNanos;
+            }
+
+            runTick(now);
+            next += intervalNanos;
+        }
+    }
+
+    private void runTick(long now) {
+        long t = tick;
+        samples[(int) (t % SAMPLES)] = now;
+
+        if (t >= SAMPLES - 1) {
+            long oldest = samples[(int) ((t + 1) % SAMPLES)];
+            tps = now > oldest ? (SAMPLES - 1) * 1_000_000_000D / (now - oldest) : targetTps;
+        }
+
+        for (Task i : tasks) {
+            if (t % i.interval == 0) {
+                i.run(t);
+            }
+        }
+
+        tick = t + 1;
+    }
+
+    public enum LagPolicy {
+        /**
+         * Run missed ticks back to back until the loop is on schedule again (dropping them if over a second behind)
+         */
+        CATCH_UP,
+
+        /**
+         * Drop missed ticks and continue at the next scheduled tick
+         */
+        SKIP
+    }
+
+    @FunctionalInterface
+    public interface TickTask {
+        /**
+         * Called once per tick (or interval) on the loop thread
+         *
+         * @param budget the time this task may still use in this tick
+         */
+        void tick(Budget budget);
+    }
+
+    /**
+     * The time a task may use in the current tick
+     */
+    public static class Budget {
+        private long tick;
+        private long deadline;
+
+        public long getTick() {
+            return tick;
+        }
+
+        /**
+         * @return the nanoseconds left in this tick's budget, negative once overrun
+         */
+        public long remaining() {
+            return deadline - System.nanoTime();
+        }
+
+        public boolean exhausted() {
+            return remaining() <= 0;
+        }
+    }
+
+    /**
+     * A task registered in a tick loop
+     */
+    public class Task {
+        private final int interval;
+        private final long budgetNs;
+        private final TickTask task;
+        private final Queue<Runnable> deferred = new ConcurrentLinkedQueue<>();
+        private final Budget budget = new Budget();
+        private volatile long overruns = 0;
+
+        private Task(int interval, long budgetNs, TickTask task) {
+            this.interval = interval;
+            this.budgetNs = budgetNs;
+            this.task = task;
+        }
+
+        /**
+         * Queue work to run on the loop thread within this task's budget, in the order it was deferred
+         *
+         * @param work the work
+         */
+        public void defer(Runnable work) {
+            deferred.add(work);
+        }
+
+        /**
+         * @return the amount of deferred work waiting for a tick with budget left
+         */
+        public int getBacklog() {
+            return deferred.size();
+        }
+
+        /**
+         * @return the amount of ticks this task used more than its budget
+         */
+        public long getOverruns() {
+            return overruns;
+        }
+
+        public long getBudgetNs() {
+            return budgetNs;
+        }
+
+        public void unregister() {
+            tasks.remove(this);
+        }
+
+        private void run(long tick) {
+            budget.tick = tick;
+            budget.deadline = System.nanoTime() + budgetNs;
+
+            if (task != null) {
+                try {
+                    task.tick(budget);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+
+            Runnable r;
+
+            while (!budget.exhausted() && (r = deferred.poll()) != null) {
+                try {
+                    r.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (budget.remaining() < 0) {
+                overruns++;
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel for huge amounts of short lived delayed tasks. Scheduling and cancelling are O(1)
+ * (a queue offer), a single worker thread moves timeouts into their bucket and expires one bucket per tick.
+ * Expired tasks are handed to the dispatch executor so slow tasks never delay the wheel.
+ * <p>
+ * Timeouts fire at the end of the tick they fall into, so the tick duration is the precision of the wheel.
+ * The worker parks while nothing is scheduled.
+ */
+public class TimingWheel {
+    private static final AtomicInteger ids = new AtomicInteger(0);
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final Executor dispatch;
+    private final Queue<Timeout<?>> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout<?>> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong(0);
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+    private volatile boolean idle = false;
+    private long tick;
+
+    /**
+     * Create a timing wheel
+     *
+     * @param tick      the tick duration (precision) of the wheel
+     * @param unit      the unit of the tick duration
+     * @param wheelSize the amount of buckets, rounded up to a power of two
+     * @param dispatch  the executor expired tasks are run on
+     */
+    public TimingWheel(long tick, TimeUnit unit, int wheelSize, Executor dispatch) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("The tick duration must be greater than 0: " + tick);
+        }
+
+        if (wheelSize <= 0 || wheelSize > 1 << 30) {
+            throw new IllegalArgumentException("The wheel size must be between 1 and 2^30: " + wheelSize);
+        }
+
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        size = wheelSize == 1 ? 1 : size;
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        this.tickNanos = unit.toNanos(tick);
+        this.dispatch = dispatch;
+
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::work, "Amulet-Timer-" + ids.incrementAndGet());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Create a timing wheel with 512 buckets which dispatches to the {@link Backend#CACHED} backend
+     *
+     * @param tickMs the tick duration (precision) of the wheel in milliseconds
+     */
+    public TimingWheel(long tickMs) {
+        this(tickMs, TimeUnit.MILLISECONDS, 512, Backend.CACHED.executor());
+    }
+
+    public Timeout<Void> schedule(Runnable r, long delay, TimeUnit unit) {
+        return schedule(() -> {
+            r.run();
+            return null;
+        }, delay, unit);
+    }
+
+    public <T> Timeout<T> schedule(Callable<T> c, long delay, TimeUnit unit) {
+        if (!running) {
+            throw new RejectedExecutionException("Timing wheel has been stopped");
+        }
+
+        long delayNanos = Math.min(Math.max(unit.toNanos(delay), 0), Long.MAX_VALUE / 4);
+        Timeout<T> t = new Timeout<>(c, System.nanoTime() - startTime + delayNanos);
+        pending.incrementAndGet();
+        scheduled.add(t);
+
+        if (idle) {
+            LockSupport.unpark(worker);
+        }
+
+        return t;
+    }
+
+    /**
+     * @return the amount of timeouts which are scheduled and not yet expired or cancelled
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Stop the worker and cancel everything still pending
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    private void work() {
+        while (running) {
+            if (pending.get() == 0) {
+                idle = true;
+
+                if (pending.get() == 0 && running) {
+                    LockSupport.park(this);
+                }
+
+                idle = false;
+                tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+                continue;
+            }
+
+            long deadline = waitForNextTick();
+
+            if (!running) {
+                break;
+            }
+
+            removeCancelled();
+            transferScheduled();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+
+        for (Bucket i : wheel) {
+            i.clear();
+        }
+
+        Timeout<?> t;
+        while ((t = scheduled.poll()) != null) {
+            t.cancel(false);
+        }
+    }
+
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+
+        while (true) {
+            long current = System.nanoTime() - startTime;
+            long sleep = deadline - current;
+
+            if (sleep <= 0 || !running) {
+                return current;
+            }
+
+            LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    private void transferScheduled() {
+        for (int i = 0; i < 100_000; i++) {
+            Timeout<?> t = scheduled.poll();
+
+            if (t == null) {
+                break;
+            }
+
+            if (t.state.get() == Timeout.CANCELLED) {
+                continue;
+            }
+
+            long target = t.deadline / tickNanos;
+            t.rounds = (target - tick) / wheel.length;
+            wheel[(int) (Math.max(target, tick) & mask)].add(t);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout<?> t;
+
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+
+            pending.decrementAndGet();
+        }
+    }
+
+    private void expired(Timeout<?> t) {
+        pending.decrementAndGet();
+
+        try {
+            dispatch.execute(t);
+        } catch (Throwable e) {
+            t.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts, only ever touched by the worker thread
+     */
+    private final class Bucket {
+        private Timeout<?> head;
+        private Timeout<?> tail;
+
+        private void add(Timeout<?> t) {
+            t.bucket = this;
+
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        private void expire(long deadline) {
+            Timeout<?> t = head;
+
+            while (t != null) {
+                Timeout<?> next = t.next;
+
+                if (t.rounds <= 0 && t.deadline <= deadline) {
+                    remove(t);
+
+                    if (t.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                        expired(t);
+                    }
+                } else {
+                    t.rounds--;
+                }
+
+                t = next;
+            }
+        }
+
+        private void remove(Timeout<?> t) {
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            } else {
+                head = t.next;
+            }
+
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            } else {
+                tail = t.prev;
+            }
+
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+        }
+
+        private void clear() {
+            while (head != null) {
+                Timeout<?> t = head;
+                remove(t);
+                t.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * A task scheduled on the wheel. It is a completable future of the task result so it composes like any other J future.
+     *
+     * @param <T> the result type
+     */
+    public final class Timeout<T> extends CompletableFuture<T> implements ScheduledFuture<T>, Runnable {
+        private static final int WAITING = 0;
+        private static final int EXPIRED = 1;
+        private static final int CANCELLED = 2;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private final Callable<T> task;
+        private final long deadline;
+        private long rounds;
+        private Timeout<?> next;
+        private Timeout<?> prev;
+        private Bucket bucket;
+
+        private Timeout(Callable<T> task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+
+            try {
+                complete(task.call());
+            } catch (Throwable e) {
+                completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                cancelled.add(this);
+            }
+
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(startTime + deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            if (o == this) {
+                return 0;
+            }
+
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
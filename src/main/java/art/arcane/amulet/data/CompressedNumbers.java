@@ -19,6 +19,8 @@
 package art.arcane.amulet.data;
 
 public class CompressedNumbers {
+    private static final int MORTON_OFFSET = 1 << 20;
+
     public static long i2(int a, int b) {
         return (((long) a) << 32) | (b & 0xffffffffL);
     }
@@ -31,6 +33,67 @@ public class CompressedNumbers {
         return (int) b;
     }
 
+    /**
+     * Interleave the bits of three coordinates into a morton (z-order) key, so coordinates close to each other
+     * in any direction get close keys. Each coordinate keeps its lowest 21 bits, covering -1048576 to 1048575,
+     * coordinates outside that range wrap around and share keys.
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the morton key
+     */
+    public static long morton3(int x, int y, int z) {
+        return spread3(x + MORTON_OFFSET) | (spread3(y + MORTON_OFFSET) << 1) | (spread3(z + MORTON_OFFSET) << 2);
+    }
+
+    public static int morton3x(long key) {
+        return compact3(key) - MORTON_OFFSET;
+    }
+
+    public static int morton3y(long key) {
+        return compact3(key >>> 1) - MORTON_OFFSET;
+    }
+
+    public static int morton3z(long key) {
+        return compact3(key >>> 2) - MORTON_OFFSET;
+    }
+
+    private static long spread3(int v) {
+        long x = v & 0x1fffffL;
+        x = (x | x << 32) & 0x1f00000000ffffL;
+        x = (x | x << 16) & 0x1f0000ff0000ffL;
+        x = (x | x << 8) & 0x100f00f00f00f00fL;
+        x = (x | x << 4) & 0x10c30c30c30c30c3L;
+        x = (x | x << 2) & 0x1249249249249249L;
+        return x;
+    }
+
+    private static int compact3(long key) {
+        long x = key & 0x1249249249249249L;
+        x = (x | x >>> 2) & 0x10c30c30c30c30c3L;
+        x = (x | x >>> 4) & 0x100f00f00f00f00fL;
+        x = (x | x >>> 8) & 0x1f0000ff0000ffL;
+        x = (x | x >>> 16) & 0x1f00000000ffffL;
+        x = (x | x >>> 32) & 0x1fffffL;
+        return (int) x;
+    }
+
+    /**
+     * Mix the bits of a key (murmur3 finalizer) so neighbouring coordinates hash to unrelated values
+     *
+     * @param key the key such as {@link #i2(int, int)}
+     * @return the well distributed hash
+     */
+    public static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
     public static int index3Dto1D(int x, int y, int z, int w, int h) {
         return (z * w * h) + (y * w) + x;
     }
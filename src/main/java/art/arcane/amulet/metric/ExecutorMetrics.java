@@ -0,0 +1,128 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.metric;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of an executor. Every task records when it was submitted, started and finished
+ * so queue wait (saturation) and run time (slow tasks) can be told apart.
+ */
+public class ExecutorMetrics {
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicInteger peak = new AtomicInteger(0);
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+
+    /**
+     * A task was handed to the executor
+     *
+     * @return the submission time to pass into {@link #started(long)}
+     */
+    public long submitted() {
+        submitted.increment();
+        return System.nanoTime();
+    }
+
+    /**
+     * A submitted task was rejected by the executor or dropped from its queue without ever running
+     */
+    public void rejected() {
+        rejected.increment();
+    }
+
+    /**
+     * A task started running
+     *
+     * @param submittedAt the time returned by {@link #submitted()}
+     * @return the start time to pass into {@link #finished(long, boolean)}
+     */
+    public long started(long submittedAt) {
+        long now = System.nanoTime();
+        started.increment();
+        queueWait.record(now - submittedAt);
+        int a = active.incrementAndGet();
+
+        if (a > peak.get()) {
+            peak.accumulateAndGet(a, Math::max);
+        }
+
+        return now;
+    }
+
+    /**
+     * A task finished running
+     *
+     * @param startedAt the time returned by {@link #started(long)}
+     * @param success   false if the task threw
+     */
+    public void finished(long startedAt, boolean success) {
+        runTime.record(System.nanoTime() - startedAt);
+        active.decrementAndGet();
+        completed.increment();
+
+        if (!success) {
+            failed.increment();
+        }
+    }
+
+    public Snapshot snapshot() {
+        long s = submitted.sum();
+        long r = rejected.sum();
+        long st = started.sum();
+
+        return new Snapshot(s, completed.sum(), failed.sum(), r, active.get(), peak.get(),
+                Math.max(0, s - r - st), queueWait.snapshot(), runTime.snapshot());
+    }
+
+    /**
+     * Reset the peak and the histograms, counters keep counting
+     */
+    public void resetWindow() {
+        peak.set(active.get());
+        queueWait.reset();
+        runTime.reset();
+    }
+
+    /**
+     * @param submitted the amount of tasks handed to the executor
+     * @param completed the amount of tasks which finished running (including failed ones)
+     * @param failed    the amount of tasks which threw
+     * @param rejected  the amount of tasks rejected or dropped without running
+     * @param active    the amount of tasks running right now (busy threads)
+     * @param peak      the most tasks which ran at the same time
+     * @param queued    the amount of submitted tasks waiting to start
+     * @param queueWait how long tasks waited before starting
+     * @param runTime   how long tasks took to run
+     */
+    public record Snapshot(long submitted, long completed, long failed, long rejected, int active, int peak,
+                           long queued, LatencyHistogram.Snapshot queueWait, LatencyHistogram.Snapshot runTime) {
+        @Override
+        public String toString() {
+            return submitted + " submitted, " + completed + " completed (" + failed + " failed), " + rejected + " rejected, "
+                    + active + " active (" + peak + " peak), " + queued + " queued. Wait: " + queueWait + ". Run: " + runTime;
+        }
+    }
+}
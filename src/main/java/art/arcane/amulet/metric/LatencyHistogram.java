@@ -0,0 +1,161 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.metric;
+
+import art.arcane.amulet.format.Form;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free log-linear histogram of nanosecond durations. Every power of two is split into 8 linear
+ * buckets so any recorded value is off by at most 12.5%, recording is a couple of atomic increments.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long ns) {
+        long v = Math.max(ns, 0);
+        counts.incrementAndGet(index(v));
+        total.add(v);
+
+        if (v > max.get()) {
+            max.accumulateAndGet(v, Math::max);
+        }
+    }
+
+    /**
+     * Take a consistent enough copy of this histogram to read percentiles from
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        long[] c = new long[BUCKETS];
+        long n = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            c[i] = counts.get(i);
+            n += c[i];
+        }
+
+        return new Snapshot(c, n, total.sum(), max.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+
+        total.reset();
+        max.set(0);
+    }
+
+    private static int index(long v) {
+        if (v < SUB) {
+            return (int) v;
+        }
+
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int mantissa = (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+        return ((exp - SUB_BITS + 1) * SUB) + mantissa;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB) {
+            return index;
+        }
+
+        int exp = (index / SUB) + SUB_BITS - 1;
+        long width = 1L << (exp - SUB_BITS);
+        return ((SUB + (index % SUB)) * width) + width - 1;
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /**
+         * @param percentile the percentile between 0 and 1 such as 0.99
+         * @return the duration in nanoseconds at or below which the percentile of recorded values fall
+         */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile * count));
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+
+            return max;
+        }
+
+        public long p50() {
+            return percentile(0.5);
+        }
+
+        public long p99() {
+            return percentile(0.99);
+        }
+
+        public long p999() {
+            return percentile(0.999);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        @Override
+        public String toString() {
+            return "p50 " + Form.duration(p50() / 1_000_000D, 2) + ", p99 " + Form.duration(p99() / 1_000_000D, 2)
+                    + ", p999 " + Form.duration(p999() / 1_000_000D, 2) + " (" + count + " samples)";
+        }
+    }
+}
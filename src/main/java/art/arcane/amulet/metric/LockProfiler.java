@@ -0,0 +1,343 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.metric;
+
+import art.arcane.amulet.data.CompressedNumbers;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Records how contended the keys of a lock are. Per key acquisitions, contended acquisitions, wait time and hold time
+ * are kept in a fixed size open addressed table without any locking, so profiling a lock never adds contention of its own.
+ * Only one out of every sampleRate acquisitions is measured, the counts are of sampled acquisitions.
+ * <p>
+ * Keys are either 2D {@link CompressedNumbers#i2(int, int)} or 3D {@link CompressedNumbers#morton3(int, int, int)}
+ * keys, the methods without dimensions take 2D keys. The same number as a 2D and a 3D key is tracked as two keys.
+ * <p>
+ * Keys which no longer fit into the table are only counted in the histograms and {@link #getOverflow()}.
+ */
+public class LockProfiler {
+    private static final int MAX_PROBES = 16;
+    private static final int EMPTY = 0;
+    private static final int WRITING = 1;
+    private static final int READY = 2;
+    private static final int ACQUISITIONS = 0;
+    private static final int CONTENDED = 1;
+    private static final int WAIT = 2;
+    private static final int HOLD = 3;
+    private final int sampleRate;
+    private final int mask;
+    private final AtomicIntegerArray states;
+    private final AtomicLongArray keys;
+    private final int[] dimensions;
+    private final AtomicLongArray stats;
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    private final LatencyHistogram holdTimes = new LatencyHistogram();
+    private final LongAdder overflow = new LongAdder();
+
+    /**
+     * Create a profiler measuring every acquisition of up to 4096 keys
+     */
+    public LockProfiler() {
+        this(4096, 1);
+    }
+
+    /**
+     * @param capacity   the amount of keys to track, rounded up to a power of two
+     * @param sampleRate measure one out of this many acquisitions
+     */
+    public LockProfiler(int capacity, int sampleRate) {
+        if (capacity <= 0 || capacity > 1 << 26) {
+            throw new IllegalArgumentException("The capacity must be between 1 and 2^26: " + capacity);
+        }
+
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("The sample rate must be at least 1: " + sampleRate);
+        }
+
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.sampleRate = sampleRate;
+        this.mask = size - 1;
+        this.states = new AtomicIntegerArray(size);
+        this.keys = new AtomicLongArray(size);
+        this.dimensions = new int[size];
+        this.stats = new AtomicLongArray(size * 4);
+    }
+
+    /**
+     * @return true if the next acquisition should be measured
+     */
+    public boolean sample() {
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * Acquire the lock of a 2D key while measuring it
+     *
+     * @param key  the key
+     * @param lock the lock of that key
+     * @return the token to pass into {@link #release(long, long)} once the lock is released
+     */
+    public long acquire(long key, Lock lock) {
+        return acquire(key, 2, lock);
+    }
+
+    /**
+     * Acquire the lock of a key while measuring it
+     *
+     * @param key        the key
+     * @param dimensions 2 for an i2 key, 3 for a morton3 key
+     * @param lock       the lock of that key
+     * @return the token to pass into {@link #release(long, int, long)} once the lock is released
+     */
+    public long acquire(long key, int dimensions, Lock lock) {
+        checkDimensions(dimensions);
+        long start = System.nanoTime();
+        // A plain tryLock would barge ahead of the threads queued on a fair lock, a timed one does not
+        boolean interrupted = Thread.interrupted();
+        boolean contended;
+
+        try {
+            contended = !lock.tryLock(0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+            contended = !lock.tryLock();
+        }
+
+        if (contended) {
+            lock.lock();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        long acquired = System.nanoTime();
+        acquired(key, dimensions, contended, acquired - start);
+        return acquired == 0 ? 1 : acquired;
+    }
+
+    /**
+     * Record an acquisition of a 2D key measured elsewhere
+     *
+     * @param key       the key
+     * @param contended true if the lock was held by someone else at first
+     * @param waitNs    the time spent waiting for the lock
+     */
+    public void acquired(long key, boolean contended, long waitNs) {
+        acquired(key, 2, contended, waitNs);
+    }
+
+    /**
+     * Record an acquisition measured elsewhere
+     *
+     * @param key        the key
+     * @param dimensions 2 for an i2 key, 3 for a morton3 key
+     * @param contended  true if the lock was held by someone else at first
+     * @param waitNs     the time spent waiting for the lock
+     */
+    public void acquired(long key, int dimensions, boolean contended, long waitNs) {
+        checkDimensions(dimensions);
+        waitTimes.record(waitNs);
+        int slot = slot(key, dimensions);
+
+        if (slot < 0) {
+            overflow.increment();
+            return;
+        }
+
+        int base = slot * 4;
+        stats.incrementAndGet(base + ACQUISITIONS);
+
+        if (contended) {
+            stats.incrementAndGet(base + CONTENDED);
+            stats.addAndGet(base + WAIT, waitNs);
+        }
+    }
+
+    /**
+     * Record the release of a lock acquired through {@link #acquire(long, Lock)}
+     *
+     * @param key   the key
+     * @param token the token returned when acquiring
+     */
+    public void release(long key, long token) {
+        release(key, 2, token);
+    }
+
+    /**
+     * Record the release of a lock acquired through {@link #acquire(long, int, Lock)}
+     *
+     * @param key        the key
+     * @param dimensions the same dimensions as when acquiring
+     * @param token      the token returned when acquiring
+     */
+    public void release(long key, int dimensions, long token) {
+        checkDimensions(dimensions);
+        long held = System.nanoTime() - token;
+        holdTimes.record(held);
+        int slot = slot(key, dimensions);
+
+        if (slot >= 0) {
+            stats.addAndGet((slot * 4) + HOLD, held);
+        }
+    }
+
+    /**
+     * @param n the amount of keys
+     * @return the n keys which spent the most time waiting, most contended first
+     */
+    public List<KeyStats> top(int n) {
+        List<KeyStats> all = new ArrayList<>();
+
+        for (int i = 0; i <= mask; i++) {
+            if (states.get(i) == READY) {
+                int base = i * 4;
+                all.add(new KeyStats(keys.get(i), dimensions[i], stats.get(base + ACQUISITIONS), stats.get(base + CONTENDED),
+                        stats.get(base + WAIT), stats.get(base + HOLD)));
+            }
+        }
+
+        all.sort(Comparator.comparingLong(KeyStats::waitNs).thenComparingLong(KeyStats::contended).reversed());
+        return all.size() > n ? new ArrayList<>(all.subList(0, n)) : all;
+    }
+
+    /**
+     * @return the time sampled acquisitions waited for their lock
+     */
+    public LatencyHistogram.Snapshot waitTimes() {
+        return waitTimes.snapshot();
+    }
+
+    /**
+     * @return the time sampled acquisitions held their lock
+     */
+    public LatencyHistogram.Snapshot holdTimes() {
+        return holdTimes.snapshot();
+    }
+
+    /**
+     * @return the amount of sampled acquisitions of keys which did not fit into the table
+     */
+    public long getOverflow() {
+        return overflow.sum();
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Forget every key and clear the histograms. Only call this while nothing is being recorded.
+     */
+    public void reset() {
+        for (int i = 0; i <= mask; i++) {
+            states.set(i, EMPTY);
+        }
+
+        for (int i = 0; i < stats.length(); i++) {
+            stats.set(i, 0);
+        }
+
+        waitTimes.reset();
+        holdTimes.reset();
+        overflow.reset();
+    }
+
+    private int slot(long key, int dims) {
+        int h = CompressedNumbers.mix(key) & mask;
+
+        for (int i = 0; i < MAX_PROBES && i <= mask; i++, h = (h + 1) & mask) {
+            int state = states.get(h);
+
+            if (state == EMPTY) {
+                if (states.compareAndSet(h, EMPTY, WRITING)) {
+                    keys.set(h, key);
+                    dimensions[h] = dims;
+                    states.set(h, READY);
+                    return h;
+                }
+
+                state = states.get(h);
+            }
+
+            while (state == WRITING) {
+                Thread.onSpinWait();
+                state = states.get(h);
+            }
+
+            if (keys.get(h) == key && dimensions[h] == dims) {
+                return h;
+            }
+        }
+
+        return -1;
+    }
+
+    private static void checkDimensions(int dimensions) {
+        if (dimensions != 2 && dimensions != 3) {
+            throw new IllegalArgumentException("Keys are either 2D or 3D, got " + dimensions);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Wait: " + waitTimes() + ". Hold: " + holdTimes() + ". Top: " + top(5);
+    }
+
+    /**
+     * @param key          the key, {@link CompressedNumbers#i2(int, int)} or {@link CompressedNumbers#morton3(int, int, int)}
+     *                     of a coordinate
+     * @param dimensions   2 for an i2 key, 3 for a morton3 key
+     * @param acquisitions the amount of sampled acquisitions
+     * @param contended    the amount of sampled acquisitions which had to wait
+     * @param waitNs       the total time spent waiting
+     * @param holdNs       the total time the lock was held (only where the lock knows when it is released)
+     */
+    public record KeyStats(long key, int dimensions, long acquisitions, long contended, long waitNs, long holdNs) {
+        public int x() {
+            return dimensions == 3 ? CompressedNumbers.morton3x(key) : CompressedNumbers.i2a(key);
+        }
+
+        /**
+         * @return the y of a 3D key, 0 for 2D keys
+         */
+        public int y() {
+            return dimensions == 3 ? CompressedNumbers.morton3y(key) : 0;
+        }
+
+        public int z() {
+            return dimensions == 3 ? CompressedNumbers.morton3z(key) : CompressedNumbers.i2b(key);
+        }
+
+        @Override
+        public String toString() {
+            return (dimensions == 3 ? "[" + x() + ", " + y() + ", " + z() + "] " : "[" + x() + ", " + z() + "] ") + contended + "/" + acquisitions + " contended, waited "
+                    + (waitNs / 1_000_000D) + "ms, held " + (holdNs / 1_000_000D) + "ms";
+        }
+    }
+}
@@ -18,20 +18,19 @@
 
 package art.arcane.amulet.metric;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import art.arcane.amulet.concurrent.J;
+
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class StarvingTimeout {
-    private static final ScheduledExecutorService service = Executors.newScheduledThreadPool(1);
     private final AtomicLong last;
     private final Runnable timeout;
     private final AtomicBoolean ticking;
-    private final ScheduledFuture<?> future;
+    private final AtomicReference<Future<?>> future;
     private final long patience;
     private final AtomicReference<Thread> waiting;
 
@@ -41,11 +40,24 @@ public class StarvingTimeout {
         this.ticking = new AtomicBoolean(true);
         this.timeout = timeout;
         this.last = new AtomicLong(Math.ms());
-        future = service.scheduleWithFixedDelay(() -> {
-            if (Math.ms() - last.get() > patience) {
+        this.future = new AtomicReference<>();
+        check(patience + 1);
+    }
+
+    private void check(long delay) {
+        future.set(J.timer().schedule(() -> {
+            if (!ticking.get()) {
+                return;
+            }
+
+            long starving = Math.ms() - last.get();
+
+            if (starving > patience) {
                 timedOut();
+            } else {
+                check(patience - starving + 1);
             }
-        }, patience, patience, TimeUnit.MILLISECONDS);
+        }, delay, TimeUnit.MILLISECONDS));
     }
 
     public boolean waitForTimeout() {
@@ -75,12 +87,11 @@ public class StarvingTimeout {
     }
 
     private void timedOut() {
-        if (!ticking.get()) {
+        if (!ticking.compareAndSet(true, false)) {
             return;
         }
 
-        future.cancel(false);
-        ticking.set(false);
+        future.get().cancel(false);
         timeout.run();
 
         if (waiting.get() != null) {
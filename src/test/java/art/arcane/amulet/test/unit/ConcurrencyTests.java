@@ -0,0 +1,1294 @@
+/*
+ * Amulet is an extension api for Java
+ * Copyright (c) 2022 Arcane Arts
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package art.arcane.amulet.test.unit;
+
+import art.arcane.amulet.atomics.AsyncHyperLock;
+import art.arcane.amulet.atomics.GridLock;
+import art.arcane.amulet.atomics.HyperLock;
+import art.arcane.amulet.atomics.ResizableSemaphore;
+import art.arcane.amulet.atomics.SparseGridLock;
+import art.arcane.amulet.atomics.StampedHyperLock;
+import art.arcane.amulet.atomics.Throttle;
+import art.arcane.amulet.atomics.TokenBucket;
+import art.arcane.amulet.concurrent.Backend;
+import art.arcane.amulet.concurrent.Batcher;
+import art.arcane.amulet.concurrent.J;
+import art.arcane.amulet.concurrent.Pool;
+import art.arcane.amulet.concurrent.RejectionPolicy;
+import art.arcane.amulet.concurrent.SerialExecutor;
+import art.arcane.amulet.concurrent.TickLoop;
+import art.arcane.amulet.concurrent.TimingWheel;
+import art.arcane.amulet.data.CompressedNumbers;
+import art.arcane.amulet.metric.LatencyHistogram;
+import art.arcane.amulet.metric.LockProfiler;
+import art.arcane.amulet.range.IntegerRange;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+import static art.arcane.amulet.MagicalSugar.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrencyTests {
+    @Test
+    public void testParallelFor() {
+        AtomicLong sum = new AtomicLong();
+        J.parallelFor(0 to 10_000, sum::addAndGet);
+        assertEquals(50_005_000, sum.get());
+
+        sum.set(0);
+        J.parallelFor(new IntegerRange(0, 10, 3, true, false, false), sum::addAndGet);
+        assertEquals(0 + 3 + 6 + 9, sum.get());
+    }
+
+    @Test
+    public void testParallelReduce() {
+        assertEquals(50_005_000L, J.parallelReduce(0 to 10_000, 0L, (i) -> (long) i, Long::sum));
+        assertEquals("10741", J.parallelReduce(new IntegerRange(10, 0, 3, true, true, true), "", (i) -> i + "", String::concat));
+    }
+
+    @Test
+    public void testBackends() throws Exception {
+        assertTrue(J.get(Backend.BOUNDED, () -> Thread.currentThread().getName()).get(10, TimeUnit.SECONDS)
+                .startsWith("Amulet-Bounded"));
+        assertTrue(J.get(Backend.FORK_JOIN, () -> Thread.currentThread() instanceof ForkJoinWorkerThread)
+                .get(10, TimeUnit.SECONDS));
+        assertTrue(Backend.CACHED.isSupported() && Backend.BOUNDED.isSupported() && Backend.FORK_JOIN.isSupported());
+
+        ExecutorService virtual = Backend.VIRTUAL.create();
+        Thread thread = virtual.submit(Thread::currentThread).get(10, TimeUnit.SECONDS);
+        virtual.shutdown();
+
+        if (Backend.VIRTUAL.isSupported()) {
+            assertEquals(true, Thread.class.getMethod("isVirtual").invoke(thread));
+        } else {
+            // Falls back to a cached pool of platform threads
+            assertInstanceOf(ThreadPoolExecutor.class, virtual);
+        }
+
+        ExecutorService before = J.backend();
+
+        try {
+            J.backend(Backend.FORK_JOIN);
+            assertSame(Backend.FORK_JOIN.executor(), J.backend());
+            assertTrue(J.get(() -> Thread.currentThread() instanceof ForkJoinWorkerThread).get(10, TimeUnit.SECONDS));
+        } finally {
+            J.backend(before);
+        }
+    }
+
+    @Test
+    public void testPoolCallerRuns() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Pool pool = saturated(RejectionPolicy.callerRuns(), release);
+        assertSame(Thread.currentThread(), pool.get(Thread::currentThread).get(10, TimeUnit.SECONDS));
+        release.countDown();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testPoolAbort() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Pool pool = saturated(RejectionPolicy.abort(), release);
+        assertThrows(RejectedExecutionException.class, () -> pool.run(() -> {}));
+        assertEquals(1, pool.metrics().rejected());
+        release.countDown();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testPoolDropOldest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Pool pool = saturated(RejectionPolicy.dropOldest(), release);
+        CompletableFuture<Void> oldest = pool.run(() -> {});
+        CompletableFuture<Integer> newest = pool.get(() -> 7);
+        assertTrue(oldest.isCancelled());
+        assertEquals(1, pool.getQueued());
+        release.countDown();
+        assertEquals(7, newest.get(10, TimeUnit.SECONDS));
+        // The task queued by saturated was dropped first, then the oldest one
+        assertEquals(2, pool.metrics().rejected());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testPoolBlock() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Pool pool = saturated(RejectionPolicy.block(10_000), release);
+        AtomicInteger ran = new AtomicInteger();
+        Thread submitter = new Thread(() -> pool.run(ran::incrementAndGet));
+        submitter.start();
+
+        // Parked on the queue rather than spinning
+        long deadline = System.currentTimeMillis() + 10_000;
+
+        while (submitter.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(Thread.State.TIMED_WAITING, submitter.getState());
+        Thread.sleep(50);
+        assertEquals(Thread.State.TIMED_WAITING, submitter.getState());
+        assertEquals(0, ran.get());
+        release.countDown();
+        submitter.join();
+        pool.shutdown();
+        assertTrue(pool.executor().awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, ran.get());
+
+        CountDownLatch releaseRest = new CountDownLatch(1);
+        Pool timeout = saturated(RejectionPolicy.block(50), releaseRest);
+        long start = System.nanoTime();
+        assertThrows(RejectedExecutionException.class, () -> timeout.run(() -> {}));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+
+        Pool interruptible = saturated(RejectionPolicy.block(10_000), releaseRest);
+        AtomicInteger interrupted = new AtomicInteger();
+        submitter = new Thread(() -> {
+            try {
+                interruptible.run(() -> {});
+            } catch (RejectedExecutionException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    interrupted.incrementAndGet();
+                }
+            }
+        });
+        submitter.start();
+        Thread.sleep(50);
+        submitter.interrupt();
+        submitter.join(10_000);
+        assertFalse(submitter.isAlive());
+        assertEquals(1, interrupted.get());
+        releaseRest.countDown();
+        timeout.shutdown();
+        interruptible.shutdown();
+    }
+
+    /**
+     * @return a pool with one thread and one queue slot, both taken until the latch is released
+     */
+    private static Pool saturated(RejectionPolicy rejection, CountDownLatch release) throws Exception {
+        Pool pool = new Pool("Saturated", 1, 1, rejection);
+        CountDownLatch running = new CountDownLatch(1);
+        pool.run(() -> {
+            running.countDown();
+
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        pool.run(() -> {});
+        assertEquals(0, pool.getQueueRemaining());
+        return pool;
+    }
+
+    @Test
+    public void testBatcherFlushBySize() throws Exception {
+        List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+        Batcher<Integer> batcher = new Batcher<>("Size", 10, 60_000, batches::add);
+
+        for (int i = 0; i < 10; i++) {
+            batcher.add(i);
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+
+        while (batches.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        // Long before the delay would have flushed it
+        assertEquals(List.of(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9)), batches);
+        assertEquals(0, batcher.getPending());
+
+        batches.clear();
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        AtomicInteger received = new AtomicInteger();
+        Batcher<Integer> concurrent = new Batcher<>("Concurrent", 10, 60_000, (batch) -> {
+            if (inside.incrementAndGet() != 1) {
+                overlaps.incrementAndGet();
+            }
+
+            batches.add(batch);
+            received.addAndGet(batch.size());
+            inside.decrementAndGet();
+        });
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    concurrent.add(i);
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread i : threads) {
+            i.join();
+        }
+
+        concurrent.flush();
+        deadline = System.currentTimeMillis() + 10_000;
+
+        while (received.get() < 4000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(4000, received.get());
+        assertEquals(0, overlaps.get());
+        assertTrue(batches.stream().allMatch((batch) -> !batch.isEmpty() && batch.size() <= 10));
+    }
+
+    @Test
+    public void testBatcherFlushByTime() throws Exception {
+        List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+        CountDownLatch flushed = new CountDownLatch(1);
+        Batcher<Integer> batcher = new Batcher<>("Time", 100, 50, (batch) -> {
+            batches.add(batch);
+            flushed.countDown();
+        });
+
+        long start = System.nanoTime();
+        batcher.add(1);
+        batcher.add(2);
+        batcher.add(3);
+        assertEquals(3, batcher.getPending());
+        assertTrue(flushed.await(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(List.of(List.of(1, 2, 3)), batches);
+        assertEquals(0, batcher.getPending());
+    }
+
+    @Test
+    public void testTickLoopCatchUp() throws Exception {
+        List<Long> times = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        TickLoop loop = new TickLoop("CatchUp", 100, TickLoop.LagPolicy.CATCH_UP);
+        loop.register(1_000_000_000L, (budget) -> {
+            times.add(System.nanoTime());
+
+            if (budget.getTick() == 5) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (budget.getTick() == 40) {
+                done.countDown();
+            }
+        });
+        loop.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        loop.stop();
+
+        // The ticks missed while stalling run back to back, so tick 40 is still about 400ms after tick 0
+        assertEquals(0, loop.getSkipped());
+        assertTrue(times.get(40) - times.get(0) < TimeUnit.MILLISECONDS.toNanos(500));
+        int backToBack = 0;
+
+        for (int i = 7; i < 20; i++) {
+            if (times.get(i) - times.get(i - 1) < TimeUnit.MILLISECONDS.toNanos(5)) {
+                backToBack++;
+            }
+        }
+
+        assertTrue(backToBack >= 10);
+    }
+
+    @Test
+    public void testTickLoopSkip() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        TickLoop loop = new TickLoop("Skip", 100, TickLoop.LagPolicy.SKIP);
+        loop.register(1_000_000_000L, (budget) -> {
+            if (budget.getTick() == 5) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (budget.getTick() == 10) {
+                done.countDown();
+            }
+        });
+        loop.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        loop.stop();
+        assertTrue(loop.getSkipped() >= 15);
+    }
+
+    @Test
+    public void testTickLoopStop() throws Exception {
+        AtomicInteger ticks = new AtomicInteger();
+        TickLoop loop = new TickLoop("Stop", 1000, TickLoop.LagPolicy.CATCH_UP);
+        loop.register(1_000_000_000L, (budget) -> ticks.incrementAndGet());
+        loop.start();
+        Thread.sleep(50);
+        loop.stop();
+        assertFalse(loop.isRunning());
+        int stopped = ticks.get();
+        assertTrue(stopped > 0);
+        assertEquals(stopped, loop.getTick());
+        Thread.sleep(50);
+        assertEquals(stopped, ticks.get());
+
+        // Stopping from inside a tick returns right away and no further tick runs
+        CountDownLatch restarted = new CountDownLatch(1);
+        TickLoop.Task stopper = loop.register(1_000_000_000L, (budget) -> {
+            restarted.countDown();
+            loop.stop();
+        });
+        loop.start();
+        assertTrue(restarted.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertFalse(loop.isRunning());
+        assertEquals(stopped + 1, ticks.get());
+        stopper.unregister();
+    }
+
+    @Test
+    public void testScope() throws Exception {
+        AtomicInteger interrupted = new AtomicInteger();
+        CountDownLatch sleeping = new CountDownLatch(1);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> J.scope(s -> {
+            // Only fails once the other task runs, otherwise the shutdown could cancel it before it ever started
+            s.fork(() -> {
+                sleeping.await();
+                throw new IllegalStateException("failed");
+            });
+
+            s.fork(() -> {
+                try {
+                    sleeping.countDown();
+                    Thread.sleep(10_000);
+                } catch (InterruptedException ex) {
+                    interrupted.incrementAndGet();
+                }
+            });
+        }));
+
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        assertEquals(1, interrupted.get());
+        assertEquals("fast", J.<String>first(s -> {
+            s.fork(() -> {
+                Thread.sleep(10_000);
+                return "slow";
+            });
+            s.fork(() -> "fast");
+        }));
+    }
+
+    @Test
+    public void testTimingWheelOrder() throws Exception {
+        // 4 buckets of 1ms, so every delay here needs at least one extra round of the wheel
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 4, Runnable::run);
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        long start = System.nanoTime();
+        List<TimingWheel.Timeout<Long>> timeouts = new ArrayList<>();
+        int[] delays = {30, 6, 17, 9, 25, 13};
+
+        for (int i : delays) {
+            timeouts.add(wheel.schedule(() -> {
+                fired.add(i);
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }, i, TimeUnit.MILLISECONDS));
+        }
+
+        for (TimingWheel.Timeout<Long> i : timeouts) {
+            i.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(List.of(6, 9, 13, 17, 25, 30), fired);
+
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue(timeouts.get(i).get() >= delays[i], "Fired before its delay: " + delays[i]);
+        }
+
+        wheel.stop();
+    }
+
+    @Test
+    public void testTimingWheelCancel() throws Exception {
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 16, Runnable::run);
+        AtomicInteger ran = new AtomicInteger();
+        TimingWheel.Timeout<Integer> cancelled = wheel.schedule(ran::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        TimingWheel.Timeout<Void> later = wheel.schedule(() -> {}, 40, TimeUnit.MILLISECONDS);
+
+        assertTrue(cancelled.cancel(false));
+        later.get(5, TimeUnit.SECONDS);
+
+        assertTrue(cancelled.isCancelled());
+        assertEquals(0, ran.get());
+        assertEquals(0, wheel.getPending());
+        wheel.stop();
+    }
+
+    @Test
+    public void testTimingWheelImmediate() throws Exception {
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 16, Runnable::run);
+
+        assertEquals("zero", wheel.schedule(() -> "zero", 0, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS));
+        assertEquals("negative", wheel.schedule(() -> "negative", -50, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS));
+        assertEquals(0, wheel.getPending());
+        wheel.stop();
+        assertThrows(RejectedExecutionException.class, () -> wheel.schedule(() -> "stopped", 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testGridLockRegions() throws Exception {
+        GridLock lock = new GridLock(16, 16);
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        AtomicInteger tried = new AtomicInteger();
+        Runnable body = () -> {
+            if (inside.incrementAndGet() != 1) {
+                overlaps.incrementAndGet();
+            }
+
+            Thread.yield();
+            inside.decrementAndGet();
+        };
+
+        // Both regions contain the cells 3..5, the second one is given by its corners in reverse
+        Thread a = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                lock.withRegion(0, 0, 5, 5, body);
+
+                if (lock.tryWithRegion(2, 2, 6, 6, 10_000, body)) {
+                    tried.incrementAndGet();
+                }
+            }
+        });
+        Thread b = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                lock.withRegion(8, 8, 3, 3, body);
+
+                if (lock.tryWithRegion(7, 7, 4, 4, 10_000, body)) {
+                    tried.incrementAndGet();
+                }
+            }
+        });
+
+        a.start();
+        b.start();
+        a.join(30_000);
+        b.join(30_000);
+
+        assertFalse(a.isAlive() || b.isAlive(), "Deadlocked");
+        assertEquals(0, overlaps.get());
+        assertEquals(4000, tried.get());
+    }
+
+    @Test
+    public void testTimedTryLock() throws Exception {
+        HyperLock hyper = new HyperLock();
+        GridLock grid = new GridLock(4, 4, 4);
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            hyper.lock(1, 2);
+            grid.lock(1, 2);
+            held.countDown();
+
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            grid.unlock(1, 2);
+            hyper.unlock(1, 2);
+        });
+        holder.start();
+        assertTrue(held.await(10, TimeUnit.SECONDS));
+
+        // An int timeout must still pick the timed 2D method, not a 3D cell
+        long start = System.nanoTime();
+        assertFalse(hyper.tryLock(1, 2, 100));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+
+        start = System.nanoTime();
+        assertFalse(grid.tryLock(1, 2, 100));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+
+        assertTrue(hyper.tryLock3(1, 2, 3));
+        hyper.unlock3(1, 2, 3);
+        done.countDown();
+        holder.join();
+    }
+
+    @Test
+    public void testMorton3() {
+        int[] values = {-1048576, -1048575, -65536, -2, -1, 0, 1, 2, 65535, 1048574, 1048575};
+
+        for (int x : values) {
+            for (int y : values) {
+                for (int z : values) {
+                    long key = CompressedNumbers.morton3(x, y, z);
+                    assertTrue(key >= 0);
+                    assertEquals(x, CompressedNumbers.morton3x(key));
+                    assertEquals(y, CompressedNumbers.morton3y(key));
+                    assertEquals(z, CompressedNumbers.morton3z(key));
+
+                    if (x < 1048575) {
+                        assertTrue(key < CompressedNumbers.morton3(x + 1, y, z));
+                    }
+
+                    if (y < 1048575) {
+                        assertTrue(key < CompressedNumbers.morton3(x, y + 1, z));
+                    }
+
+                    if (z < 1048575) {
+                        assertTrue(key < CompressedNumbers.morton3(x, y, z + 1));
+                    }
+                }
+            }
+        }
+
+        assertEquals(0, CompressedNumbers.morton3(-1048576, -1048576, -1048576));
+        assertEquals(Long.MAX_VALUE, CompressedNumbers.morton3(1048575, 1048575, 1048575));
+        assertEquals(CompressedNumbers.morton3(-1048576, 0, 0), CompressedNumbers.morton3(1048576, 0, 0));
+    }
+
+    @Test
+    public void testStripedHyperLock() throws Exception {
+        HyperLock lock = HyperLock.striped(16);
+        int stripe = CompressedNumbers.mix(CompressedNumbers.i2(0, 0)) & 15;
+        int shared = 1;
+        int other = 1;
+
+        while ((CompressedNumbers.mix(CompressedNumbers.i2(shared, 0)) & 15) != stripe) {
+            shared++;
+        }
+
+        while ((CompressedNumbers.mix(CompressedNumbers.i2(other, 0)) & 15) == stripe) {
+            other++;
+        }
+
+        int sharedX = shared;
+        int otherX = other;
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+
+        // Two coordinates on the same stripe exclude each other
+        for (int t = 0; t < threads.length; t++) {
+            int x = t % 2 == 0 ? 0 : sharedX;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    lock.with(x, 0, () -> {
+                        if (inside.incrementAndGet() != 1) {
+                            overlaps.incrementAndGet();
+                        }
+
+                        inside.decrementAndGet();
+                    });
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread i : threads) {
+            i.join();
+        }
+
+        assertEquals(0, overlaps.get());
+
+        // Reentrant, so one thread may hold both
+        lock.lock(0, 0);
+        lock.lock(sharedX, 0);
+        AtomicInteger locked = new AtomicInteger();
+        Thread probe = new Thread(() -> {
+            if (!lock.tryLock(sharedX, 0)) {
+                locked.incrementAndGet();
+            }
+
+            if (lock.tryLock(otherX, 0)) {
+                locked.incrementAndGet();
+                lock.unlock(otherX, 0);
+            }
+        });
+        probe.start();
+        probe.join();
+        lock.unlock(sharedX, 0);
+        lock.unlock(0, 0);
+        assertEquals(2, locked.get());
+        assertEquals(16, lock.getStripes());
+    }
+
+    @Test
+    public void testHyperLock3DKeys() throws Exception {
+        long key = CompressedNumbers.morton3(1, 2, 3);
+        int x = CompressedNumbers.i2a(key);
+        int z = CompressedNumbers.i2b(key);
+
+        for (HyperLock lock : new HyperLock[]{new HyperLock(), HyperLock.striped(1)}) {
+            CountDownLatch held = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(1);
+            Thread holder = new Thread(() -> {
+                lock.lock3(1, 2, 3);
+                held.countDown();
+
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                lock.unlock3(1, 2, 3);
+            });
+            holder.start();
+            assertTrue(held.await(10, TimeUnit.SECONDS));
+
+            // The 2D key is the same number (or the same single stripe), but 3D keys have locks of their own
+            assertTrue(lock.tryLock(x, z));
+            lock.unlock(x, z);
+            assertFalse(lock.tryLock3(1, 2, 3));
+            done.countDown();
+            holder.join();
+        }
+    }
+
+    @Test
+    public void testHyperLockAllOrder() throws Exception {
+        HyperLock lock = HyperLock.striped(64);
+        long[] keys = {CompressedNumbers.i2(0, 0), CompressedNumbers.i2(5, -3), CompressedNumbers.i2(-9, 12),
+                CompressedNumbers.i2(0, 0)};
+        long[] reversed = {keys[2], keys[1], keys[0]};
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+
+        // Opposite orders would deadlock if the locks were taken in the order of the keys
+        for (int t = 0; t < threads.length; t++) {
+            long[] mine = t % 2 == 0 ? keys : reversed;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 5_000; i++) {
+                    lock.withAll(mine, () -> {
+                        if (inside.incrementAndGet() != 1) {
+                            overlaps.incrementAndGet();
+                        }
+
+                        inside.decrementAndGet();
+                    });
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread i : threads) {
+            i.join(20_000);
+            assertFalse(i.isAlive());
+        }
+
+        assertEquals(0, overlaps.get());
+        assertThrows(IllegalStateException.class, () -> new HyperLock().withAll(keys, () -> {}));
+    }
+
+    @Test
+    public void testHyperLockAllRollback() throws Exception {
+        HyperLock lock = HyperLock.striped(1024);
+        long free = CompressedNumbers.i2(0, 0);
+        long taken = CompressedNumbers.i2(0, 1);
+        assertNotEquals(CompressedNumbers.mix(free) & 1023, CompressedNumbers.mix(taken) & 1023);
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            lock.lock(0, 1);
+            held.countDown();
+
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            lock.unlock(0, 1);
+        });
+        holder.start();
+        assertTrue(held.await(10, TimeUnit.SECONDS));
+
+        // The free key is released again, another thread can lock it
+        Runnable freeIsUnlocked = () -> {
+            AtomicInteger locked = new AtomicInteger();
+            Thread other = new Thread(() -> {
+                if (lock.tryLock(0, 0)) {
+                    locked.incrementAndGet();
+                    lock.unlock(0, 0);
+                }
+            });
+            other.start();
+
+            try {
+                other.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            assertEquals(1, locked.get());
+        };
+
+        assertFalse(lock.tryLockAll(new long[]{free, taken}));
+        freeIsUnlocked.run();
+        assertFalse(lock.tryLockAll(new long[]{free, taken}, 50));
+        freeIsUnlocked.run();
+
+        Thread.currentThread().interrupt();
+        assertFalse(lock.tryLockAll(new long[]{free, taken}, 10_000));
+        assertTrue(Thread.interrupted());
+        freeIsUnlocked.run();
+
+        done.countDown();
+        holder.join();
+        assertTrue(lock.tryLockAll(new long[]{free, taken}));
+        lock.unlockAll(new long[]{free, taken});
+        freeIsUnlocked.run();
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().p99());
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+
+        // Percentiles are bucket upper bounds, never below the real value and at most 12.5% above it
+        assertEquals(1, snapshot.percentile(0.001));
+        assertEquals(7, snapshot.percentile(0.007));
+        assertTrue(snapshot.p50() >= 500 && snapshot.p50() <= 500 * 1.125);
+        assertTrue(snapshot.p99() >= 990 && snapshot.p99() <= 1000);
+        assertEquals(1000, snapshot.p999());
+        assertEquals(1000, snapshot.percentile(1));
+
+        histogram.reset();
+
+        for (int i = 0; i < 998; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        histogram.record(TimeUnit.SECONDS.toNanos(1));
+        histogram.record(TimeUnit.SECONDS.toNanos(2));
+        histogram.record(-5);
+        snapshot = histogram.snapshot();
+        assertEquals(1001, snapshot.getCount());
+        assertEquals(0, snapshot.percentile(0.0005));
+        assertTrue(snapshot.p50() >= 1_000_000 && snapshot.p50() <= 1_125_000);
+        assertTrue(snapshot.p99() >= 1_000_000 && snapshot.p99() <= 1_125_000);
+        assertTrue(snapshot.p999() >= 1_000_000_000L && snapshot.p999() <= 1_125_000_000L);
+        assertEquals(2_000_000_000L, snapshot.percentile(1));
+    }
+
+    @Test
+    public void testLockProfiler() throws Exception {
+        LockProfiler profiler = new LockProfiler();
+        ReentrantLock lock = new ReentrantLock(true);
+        long key = CompressedNumbers.i2(3, 4);
+
+        for (int i = 0; i < 3; i++) {
+            profiler.release(key, profiler.acquire(key, lock));
+            lock.unlock();
+        }
+
+        // Still measured as an uncontended acquisition, and the interrupt survives it
+        Thread.currentThread().interrupt();
+        long token = profiler.acquire(key, lock);
+        assertTrue(Thread.interrupted());
+        lock.unlock();
+        profiler.release(key, token);
+
+        LockProfiler.KeyStats stats = profiler.top(1).get(0);
+        assertEquals(4, stats.acquisitions());
+        assertEquals(0, stats.contended());
+        assertEquals(0, stats.waitNs());
+
+        CountDownLatch started = new CountDownLatch(1);
+        lock.lock();
+        Thread waiter = new Thread(() -> {
+            started.countDown();
+            profiler.release(key, profiler.acquire(key, lock));
+            lock.unlock();
+        });
+        waiter.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        lock.unlock();
+        waiter.join();
+
+        stats = profiler.top(1).get(0);
+        assertEquals(3, stats.x());
+        assertEquals(4, stats.z());
+        assertEquals(5, stats.acquisitions());
+        assertEquals(1, stats.contended());
+        assertTrue(stats.waitNs() >= TimeUnit.MILLISECONDS.toNanos(90));
+        assertEquals(5, profiler.waitTimes().getCount());
+        assertTrue(profiler.waitTimes().getMax() >= TimeUnit.MILLISECONDS.toNanos(90));
+        assertTrue(profiler.waitTimes().p50() < TimeUnit.MILLISECONDS.toNanos(90));
+        assertEquals(5, profiler.holdTimes().getCount());
+    }
+
+    @Test
+    public void testGridLockReleaseOnException() throws Exception {
+        GridLock lock = new GridLock(8, 8);
+
+        assertThrows(IllegalStateException.class, () -> lock.withRegion(0, 0, 7, 7, () -> {
+            throw new IllegalStateException("failed");
+        }));
+
+        // Another thread, the locks are reentrant so this thread could take them even if they leaked
+        assertTrue(CompletableFuture.supplyAsync(() -> lock.tryWithRegion(0, 0, 7, 7, 0, () -> {}))
+                .get(10, TimeUnit.SECONDS));
+        assertTrue(CompletableFuture.supplyAsync(() -> lock.tryLock(3, 3)).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTokenBucketBurst() {
+        TokenBucket bucket = new TokenBucket(1, 5);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire());
+        }
+
+        assertFalse(bucket.tryAcquire());
+        assertEquals(0, bucket.getAvailable());
+        assertFalse(new TokenBucket(1, 5).tryAcquire(6));
+        assertTrue(new TokenBucket(1, 5).tryAcquire(5));
+    }
+
+    @Test
+    public void testTokenBucketRefill() throws Exception {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        assertTrue(bucket.tryAcquire());
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 10; i++) {
+            bucket.acquire();
+        }
+
+        // 10 more tokens at 100 per second can't take less than about 100ms
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 80);
+    }
+
+    @Test
+    public void testTokenBucketTimeout() throws Exception {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        assertTrue(bucket.tryAcquire());
+
+        long start = System.nanoTime();
+        assertFalse(bucket.tryAcquire(1, 10, TimeUnit.MILLISECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 50, "Waited for tokens it could not get");
+
+        start = System.nanoTime();
+        assertTrue(bucket.tryAcquire(1, 1, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 80);
+    }
+
+    @Test
+    public void testResizableSemaphoreWithAll() throws Exception {
+        ResizableSemaphore semaphore = new ResizableSemaphore(4);
+        AtomicInteger left = new AtomicInteger(-1);
+        CountDownLatch ran = new CountDownLatch(1);
+        Runnable withAll = () -> semaphore.withAll(() -> {
+            left.set(semaphore.availablePermits());
+            ran.countDown();
+        });
+
+        // Shrinking while withAll waits must not leave it waiting for the permits which were removed
+        semaphore.acquire();
+        Thread waiter = new Thread(withAll);
+        waiter.start();
+        Thread.sleep(50);
+        semaphore.setPermits(2);
+        assertFalse(ran.await(50, TimeUnit.MILLISECONDS));
+        semaphore.release();
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(0, left.get());
+        assertEquals(2, semaphore.availablePermits());
+
+        // Growing while it waits makes it wait for the new permits as well
+        CountDownLatch ranAgain = new CountDownLatch(1);
+        semaphore.acquire();
+        waiter = new Thread(() -> semaphore.withAll(() -> {
+            left.set(semaphore.availablePermits());
+            ranAgain.countDown();
+        }));
+        waiter.start();
+        Thread.sleep(50);
+        semaphore.setPermits(5);
+        semaphore.release();
+        assertTrue(ranAgain.await(10, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(0, left.get());
+        assertEquals(5, semaphore.availablePermits());
+    }
+
+    @Test
+    public void testThrottle() throws Exception {
+        Throttle throttle = new Throttle(2, 1_000_000, 1_000);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger most = new AtomicInteger();
+        Thread[] threads = new Thread[6];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 50; j++) {
+                    try {
+                        throttle.run(() -> {
+                            most.accumulateAndGet(running.incrementAndGet(), Math::max);
+                            Thread.yield();
+                            running.decrementAndGet();
+                        });
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread i : threads) {
+            i.join();
+        }
+
+        assertTrue(most.get() <= 2);
+        assertFalse(throttle.tryRun(1_001, () -> {}));
+
+        CountDownLatch entered = new CountDownLatch(2);
+        CountDownLatch leave = new CountDownLatch(1);
+
+        for (int i = 0; i < 2; i++) {
+            new Thread(() -> throttle.tryRun(1, () -> {
+                entered.countDown();
+
+                try {
+                    leave.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            })).start();
+        }
+
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        assertFalse(throttle.tryRun(1, () -> {}));
+        leave.countDown();
+    }
+
+    @Test
+    public void testSparseGridLockReclaim() throws Exception {
+        SparseGridLock lock = new SparseGridLock();
+
+        lock.with(-5, 7, () -> assertEquals(1, lock.getActiveCells()));
+        lock.withRegion(-1, -1, 1, 1, () -> assertEquals(9, lock.getActiveCells()));
+        assertThrows(IllegalStateException.class, () -> lock.with(0, 0, () -> {
+            throw new IllegalStateException("failed");
+        }));
+        assertEquals(0, lock.getActiveCells());
+
+        assertTrue(lock.tryLock(3, 3));
+        assertFalse(CompletableFuture.supplyAsync(() -> lock.tryLock(3, 3)).get(10, TimeUnit.SECONDS));
+        assertEquals(1, lock.getActiveCells());
+        lock.unlock(3, 3);
+        assertEquals(0, lock.getActiveCells());
+        assertThrows(IllegalMonitorStateException.class, () -> lock.unlock(3, 3));
+    }
+
+    @Test
+    public void testSparseGridLockContention() throws Exception {
+        SparseGridLock lock = new SparseGridLock();
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 2000; j++) {
+                    lock.with(1, -1, () -> {
+                        if (inside.incrementAndGet() != 1) {
+                            overlaps.incrementAndGet();
+                        }
+
+                        Thread.yield();
+                        inside.decrementAndGet();
+                    });
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread i : threads) {
+            i.join(30_000);
+            assertFalse(i.isAlive(), "Deadlocked");
+        }
+
+        assertEquals(0, overlaps.get());
+        assertEquals(0, lock.getActiveCells());
+    }
+
+    @Test
+    public void testSerialOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        SerialExecutor serial = new SerialExecutor(pool);
+        List<Integer> order = new ArrayList<>();
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CompletableFuture<Void> last = null;
+
+        for (int i = 0; i < 1000; i++) {
+            int n = i;
+            last = serial.run(3, -4, () -> {
+                if (inside.incrementAndGet() != 1) {
+                    overlaps.incrementAndGet();
+                }
+
+                order.add(n);
+                inside.decrementAndGet();
+            });
+        }
+
+        last.get(10, TimeUnit.SECONDS);
+        assertEquals(0, overlaps.get());
+        assertEquals(1000, order.size());
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, order.get(i));
+        }
+
+        pool.shutdown();
+    }
+
+    @Test
+    public void testSerialParallelKeys() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        SerialExecutor serial = new SerialExecutor(pool);
+        CountDownLatch other = new CountDownLatch(1);
+
+        // Only completes if the task of key 2 runs while the task of key 1 is still running
+        CompletableFuture<Void> waiting = serial.run(1, () -> {
+            try {
+                assertTrue(other.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        serial.run(2, other::countDown);
+
+        waiting.get(20, TimeUnit.SECONDS);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testSerialFailure() throws Exception {
+        CompletableFuture<Void> failed = J.serial(7, 7, () -> {
+            throw new IllegalStateException("failed");
+        });
+        CompletableFuture<Void> next = J.serial(7, 7, () -> {});
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        next.get(10, TimeUnit.SECONDS);
+        assertTrue(next.isDone() && !next.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testAsyncLockOrder() throws Exception {
+        AsyncHyperLock lock = new AsyncHyperLock();
+        AsyncHyperLock.Permit first = lock.acquire(5, -5).get(10, TimeUnit.SECONDS);
+        assertTrue(lock.acquire(6, -5).isDone());
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        List<CompletableFuture<AsyncHyperLock.Permit>> waiting = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            int n = i;
+            waiting.add(lock.acquire(5, -5).thenApply((permit) -> {
+                order.add(n);
+                return permit;
+            }));
+        }
+
+        Thread.sleep(50);
+        assertTrue(order.isEmpty());
+        first.release();
+
+        for (int i = 0; i < waiting.size(); i++) {
+            AsyncHyperLock.Permit permit = waiting.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals(i + 1, order.size());
+            assertEquals(5, permit.getX());
+            assertEquals(-5, permit.getZ());
+
+            if (i + 1 < waiting.size()) {
+                Thread.sleep(10);
+                assertFalse(waiting.get(i + 1).isDone());
+            }
+
+            permit.release();
+        }
+
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), order);
+    }
+
+    @Test
+    public void testAsyncLockReleaseOnException() throws Exception {
+        AsyncHyperLock lock = new AsyncHyperLock();
+        CompletableFuture<Object> thrown = lock.with(1, 1, () -> {
+            throw new IllegalStateException("failed");
+        });
+        ExecutionException e = assertThrows(ExecutionException.class, () -> thrown.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+
+        CompletableFuture<Object> failed = lock.with(1, 1,
+                () -> CompletableFuture.failedFuture(new IllegalStateException("failed")));
+        assertThrows(ExecutionException.class, () -> failed.get(10, TimeUnit.SECONDS));
+
+        CompletableFuture<Integer> pending = new CompletableFuture<>();
+        CompletableFuture<Integer> held = lock.with(1, 1, () -> pending);
+        CompletableFuture<Integer> next = lock.with(1, 1, () -> CompletableFuture.completedFuture(2));
+        Thread.sleep(50);
+        assertFalse(next.isDone());
+        pending.completeExceptionally(new IllegalStateException("failed"));
+        assertThrows(ExecutionException.class, () -> held.get(10, TimeUnit.SECONDS));
+        assertEquals(2, next.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testStampedOptimistic() {
+        StampedHyperLock lock = new StampedHyperLock(16);
+        AtomicInteger calls = new AtomicInteger();
+        int[] value = {1};
+        IntConsumer write = (v) -> {
+            Thread writer = new Thread(() -> lock.withWrite(2, 3, () -> value[0] = v));
+            writer.start();
+
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+
+        assertEquals(1, (int) lock.withOptimistic(2, 3, () -> {
+            calls.incrementAndGet();
+            return value[0];
+        }));
+        assertEquals(1, calls.get());
+
+        // A write between the optimistic read and its validation makes the read run again under a read lock
+        calls.set(0);
+        assertEquals(2, (int) lock.withOptimistic(2, 3, () -> {
+            int seen = value[0];
+
+            if (calls.incrementAndGet() == 1) {
+                write.accept(2);
+            }
+
+            return seen;
+        }));
+        assertEquals(2, calls.get());
+
+        // So does a read failing on the state a writer tore
+        calls.set(0);
+        assertEquals(3, (int) lock.withOptimistic(2, 3, () -> {
+            if (calls.incrementAndGet() == 1) {
+                write.accept(3);
+                throw new IllegalStateException("torn");
+            }
+
+            return value[0];
+        }));
+        assertEquals(2, calls.get());
+
+        assertThrows(IllegalStateException.class, () -> lock.withOptimistic(2, 3, () -> {
+            throw new IllegalStateException("failed");
+        }));
+    }
+
+    @Test
+    public void testStampedWriteExclusion() throws Exception {
+        StampedHyperLock lock = new StampedHyperLock(16);
+        long stamp = lock.writeLock(4, 4);
+        assertEquals(0, lock.tryReadLock(4, 4));
+        assertEquals(0, lock.tryWriteLock(4, 4));
+        assertEquals(0, lock.tryOptimisticRead(4, 4));
+
+        CountDownLatch read = new CountDownLatch(1);
+        Thread reader = new Thread(() -> lock.withRead(4, 4, read::countDown));
+        reader.start();
+        assertFalse(read.await(50, TimeUnit.MILLISECONDS));
+        lock.unlockWrite(4, 4, stamp);
+        assertTrue(read.await(10, TimeUnit.SECONDS));
+        reader.join();
+
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        int[] count = {0};
+        Thread[] writers = new Thread[4];
+
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    lock.withWrite(4, 4, () -> {
+                        if (inside.incrementAndGet() != 1) {
+                            overlaps.incrementAndGet();
+                        }
+
+                        count[0]++;
+                        inside.decrementAndGet();
+                    });
+                }
+            });
+            writers[t].start();
+        }
+
+        for (Thread i : writers) {
+            i.join();
+        }
+
+        assertEquals(0, overlaps.get());
+        assertEquals(40_000, lock.withReadResult(4, 4, () -> count[0]));
+    }
+}
@@ -21,6 +21,7 @@ package art.arcane.amulet.test.unit;
 import art.arcane.amulet.concurrent.J;
 import org.junit.jupiter.api.Test;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -39,6 +40,15 @@ public class FutureTests {
                 .force().stream().mapToInt(i -> i).sum());
     }
 
+    @Test
+    public void testRunAll() {
+        AtomicInteger count = new AtomicInteger();
+        J.runAll(count::incrementAndGet, count::incrementAndGet, count::incrementAndGet).force();
+        assertEquals(3, count.get());
+        assertEquals(5, J.get(this::get).andRunAll(count::incrementAndGet, count::incrementAndGet).force());
+        assertEquals(5, count.get());
+    }
+
     public int get()
     {
         return 5;
@@ -18,9 +18,18 @@
 
 package art.arcane.amulet.test.unit;
 
+import art.arcane.amulet.collections.PersistentVector;
+import art.arcane.amulet.collections.QueuedList;
+import art.arcane.amulet.collections.SegmentedList;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -46,4 +55,134 @@ public class ListTests {
         assertEquals(3, v.copy().popLast());
         assertEquals(2, v.last());
     }
+
+    @Test
+    public void testSegmentedList() {
+        List<Integer> v = new SegmentedList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            v.add(i);
+        }
+
+        assertEquals(1000, v.size());
+        assertEquals(500, v[500]);
+        v.add(0, -1);
+        assertEquals(-1, v.remove(0));
+        v.removeIf(i -> i % 2 == 0);
+        assertEquals(500, v.size());
+        assertEquals(999, v.last());
+    }
+
+    @Test
+    public void testSegmentedListConcurrentAppend() throws Exception {
+        List<Integer> v = new SegmentedList<>();
+        AtomicInteger missing = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            int base = t * 10_000;
+            threads[t] = new Thread(() -> {
+                for (int i = base; i < base + 10_000; i++) {
+                    v.add(i);
+
+                    // Scans from the end, where the element was just added, so this stays cheap
+                    if (v.lastIndexOf(i) < 0) {
+                        missing.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread i : threads) {
+            i.join();
+        }
+
+        assertEquals(0, missing.get());
+        assertEquals(40_000, v.size());
+        assertEquals(40_000, new HashSet<>(v).size());
+    }
+
+    @Test
+    public void testQueuedListCopiesQueue() {
+        ConcurrentLinkedQueue<Integer> queue = new ConcurrentLinkedQueue<>(List.of(1, 2, 3));
+        List<Integer> v = new QueuedList<>(queue);
+        queue.add(4);
+        v.add(5);
+        assertEquals(List.of(1, 2, 3, 5), v);
+        assertEquals(List.of(1, 2, 3, 4), new ArrayList<>(queue));
+        assertEquals(2, v[1]);
+    }
+
+    @Test
+    public void testParallel() {
+        List<Integer> v = new ArrayList<>();
+
+        for (int i = 0; i < 50_000; i++) {
+            v.add(i);
+        }
+
+        assertEquals(v.copy().removeWhere(i -> i % 3 == 0), v.copy().parallelRemoveWhere(i -> i % 3 == 0));
+        assertEquals(v.copy().removeWhere(i -> i % 3 == 0), new CopyOnWriteArrayList<>(v).parallelRemoveWhere(i -> i % 3 == 0));
+        assertEquals(v.where(i -> i % 7 == 0), v.parallelWhere(i -> i % 7 == 0));
+        assertEquals(v.convert(i -> i % 2 == 0 ? null : i * 2), v.parallelConvert(i -> i % 2 == 0 ? null : i * 2));
+        assertEquals(List.of(), List.<Integer>of().parallelRemoveWhere(i -> i % 3 == 0));
+        assertEquals(List.of(), List.<Integer>of().keepWhere(i -> i % 3 == 0));
+    }
+
+    @Test
+    public void testPersistent() {
+        PersistentVector<Integer> v = List.<Integer>persistent();
+
+        for (int i = 0; i < 1000; i++) {
+            v = v.plus(i);
+        }
+
+        PersistentVector<Integer> w = v.with(500, -1).dropLast();
+        assertEquals(500, v[500]);
+        assertEquals(-1, w[500]);
+        assertEquals(999, w.size());
+        assertEquals(999, (-v)[0]);
+        assertEquals(998, (v - List.from(1, 2)).size());
+        assertEquals(List.from(1, 3, 2), PersistentVector.of(List.from(1, 2, 3, 2)).minus(List.from(2)));
+        assertEquals(List.from(1, 3), PersistentVector.of(List.from(1, 2, 3, 2)).minus(Set.of(2)));
+    }
+
+    @Test
+    public void testPersistentLevels() {
+        PersistentVector<Integer> v = List.persistent();
+        List<Integer> expected = new ArrayList<>();
+
+        // 32 fills the tail, 32 * 32 + 32 fills the first tree level, beyond that the root grows a level
+        for (int i = 0; i < 40_000; i++) {
+            v = v.plus(i);
+            expected.add(i);
+
+            if (i == 31 || i == 32 || i == 1055 || i == 1056 || i == 33_823 || i == 33_824) {
+                assertEquals(expected, v);
+            }
+        }
+
+        PersistentVector<Integer> full = v;
+        v = v.with(0, -1).with(1056, -2).with(39_999, -3);
+        assertEquals(-1, v[0]);
+        assertEquals(-2, v[1056]);
+        assertEquals(-3, v[39_999]);
+        assertEquals(1056, full[1056]);
+        expected.set(0, -1);
+        expected.set(1056, -2);
+        expected.set(39_999, -3);
+
+        while (!v.isEmpty()) {
+            v = v.dropLast();
+            expected.remove(expected.size() - 1);
+
+            if (v.size() % 997 == 0 || v.size() == 1056 || v.size() == 1055 || v.size() == 32 || v.size() == 31) {
+                assertEquals(expected, v);
+            }
+        }
+
+        assertEquals(40_000, full.size());
+        assertEquals(39_999, full[39_999]);
+    }
 }
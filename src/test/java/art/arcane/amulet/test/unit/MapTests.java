@@ -18,11 +18,168 @@
 
 package art.arcane.amulet.test.unit;
 
+import art.arcane.amulet.collections.BiMap;
+import art.arcane.amulet.collections.PersistentMap;
 import org.junit.jupiter.api.Test;
 
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class MapTests {
     @Test
     public void testOperators() {
 
     }
+
+    @Test
+    public void testSorting() {
+        Map<String, Integer> v = Map.from("a", 3, "b", 1, "c", 2);
+
+        assertEquals(List.from("b", "c", "a"), v.sortK(Comparator.naturalOrder()));
+        assertEquals(List.from("b", "c", "a"), v.sortKNumber());
+        assertEquals(List.from(3, 1, 2), v.sortV(Comparator.naturalOrder()));
+        assertEquals("a", v.topK(2, Comparator.naturalOrder())[0].getKey());
+        assertEquals(2, v.topK(2, Comparator.naturalOrder()).size());
+        assertEquals(2, Map.from("a", 1, "b", 1).sortK(Comparator.naturalOrder()).size());
+    }
+
+    @Test
+    public void testBiMap() {
+        BiMap<String, Integer> v = Map.bi();
+        v.put("a", 1);
+        v.put("b", 2);
+
+        assertEquals("b", v.inverse().get(2));
+        assertSame(v.inverse(), -v);
+        assertThrows(IllegalArgumentException.class, () -> v.put("c", 1));
+        v.forcePut("c", 1);
+        assertFalse(v.containsKey("a"));
+        v.inverse().remove(2);
+        assertEquals(Map.from("c", 1), v);
+    }
+
+    @Test
+    public void testParallelRewrite() {
+        Map<Integer, Integer> v = new ConcurrentHashMap<>();
+
+        for (int i = 0; i < 50_000; i++) {
+            v.put(i, i);
+        }
+
+        v.parallelRewrite((k, x, m) -> {
+            if (k % 2 == 0) {
+                m.remove(k);
+            } else {
+                m.put(k, x * 2);
+            }
+        });
+
+        assertEquals(25_000, v.size());
+        assertEquals(2, v.get(1));
+        assertFalse(v.containsKey(2));
+
+        Map<Integer, Integer> h = new HashMap<>(v);
+        h.parallelRewrite((k, x, m) -> m.remove(k));
+        assertTrue(h.isEmpty());
+    }
+
+    @Test
+    public void testPersistent() {
+        PersistentMap<String, Integer> v = Map.persistent();
+        PersistentMap<String, Integer> a = v + Map.from("a", 1, "b", 2);
+        PersistentMap<String, Integer> b = a - "a";
+
+        assertTrue(v.isEmpty());
+        assertEquals(Map.from("a", 1, "b", 2), a);
+        assertEquals(Map.from("b", 2), b);
+
+        Map<String, Integer> c = a.copy();
+        c.put("c", 3);
+        assertEquals(3, c.size());
+        assertEquals(2, a.size());
+
+        // Setting an equal value, even a different instance, keeps the map
+        PersistentMap<String, String> s = Map.<String, String>persistent().plus(null, "x").plus("k", "v");
+        assertSame(s, s.plus(null, new String("x")));
+        assertSame(s, s.plus("k", new String("v")));
+        assertEquals("y", s.plus(null, "y").get(null));
+        assertEquals(2, s.plus(null, "y").size());
+    }
+
+    @Test
+    public void testPersistentDeep() {
+        PersistentMap<Integer, Integer> v = Map.persistent();
+        Map<Integer, Integer> expected = new HashMap<>();
+
+        for (int i = 0; i < 20_000; i++) {
+            v = v.plus(i * 31, i);
+            expected.put(i * 31, i);
+        }
+
+        PersistentMap<Integer, Integer> full = v;
+        assertEquals(expected, v);
+
+        for (int i = 0; i < 20_000; i += 2) {
+            v = v.minus(i * 31);
+            expected.remove(i * 31);
+        }
+
+        assertEquals(expected, v);
+        assertEquals(20_000, full.size());
+
+        for (int i = 1; i < 20_000; i += 2) {
+            v = v.minus(i * 31);
+        }
+
+        assertTrue(v.isEmpty());
+        assertFalse(v.entrySet().iterator().hasNext());
+    }
+
+    @Test
+    public void testPersistentCollisions() {
+        PersistentMap<Collide, Integer> v = Map.persistent();
+
+        for (int i = 0; i < 1000; i++) {
+            v = v.plus(new Collide(i), i);
+        }
+
+        assertEquals(1000, v.size());
+        assertEquals(1000, v.entrySet().size());
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, v.get(new Collide(i)));
+        }
+
+        PersistentMap<Collide, Integer> half = v;
+
+        for (int i = 0; i < 1000; i += 2) {
+            half = half.minus(new Collide(i));
+        }
+
+        assertEquals(500, half.size());
+        assertFalse(half.containsKey(new Collide(0)));
+        assertEquals(1, half.get(new Collide(1)));
+
+        for (int i = 0; i < 1000; i++) {
+            v = v.minus(new Collide(i));
+        }
+
+        assertTrue(v.isEmpty());
+        assertNull(v.get(new Collide(1)));
+    }
+
+    /**
+     * Only 4 distinct hashes, so most keys end up in collision nodes
+     */
+    private record Collide(int v) {
+        @Override
+        public int hashCode() {
+            return v % 4;
+        }
+    }
 }
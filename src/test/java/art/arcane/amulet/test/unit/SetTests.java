@@ -18,6 +18,7 @@
 
 package art.arcane.amulet.test.unit;
 
+import art.arcane.amulet.collections.PersistentSet;
 import org.junit.jupiter.api.Test;
 
 import java.util.Set;
@@ -40,5 +41,15 @@ public class SetTests {
         assertEquals(v.copy().remove(1, 1), v.copy().keepWhere(i -> i >= 2));
         assertEquals("1,2,3", v.toString(","));
         assertEquals(1, v.copy().pop());
+        assertEquals(Set.of(), Set.<Integer>of().removeWhere(i -> i <= 2));
+        assertEquals(Set.of(), Set.<Integer>of().parallelRemoveWhere(i -> i <= 2));
+    }
+
+    @Test
+    public void testPersistent() {
+        PersistentSet<Integer> v = Set.<Integer>persistent().plus(Set.from(1, 2, 3));
+
+        assertEquals(Set.from(3), v - Set.from(1, 2));
+        assertEquals(Set.from(1, 2, 3), v);
     }
 }